@@ -2,12 +2,27 @@ package org.seasar.wicket.example.dao;
 
 import java.util.List;
 
+import org.seasar.dao.annotation.tiger.Arguments;
 import org.seasar.dao.annotation.tiger.S2Dao;
+import org.seasar.dao.annotation.tiger.Sql;
 import org.seasar.wicket.example.entity.Message;
 
 @S2Dao(bean = Message.class)
 public interface MessageDao {
     public List<Message> select();
 
+    @Sql("SELECT COUNT(*) FROM message")
+    public int selectCount();
+
+    @Arguments( { "after", "limit" })
+    @Sql("SELECT * FROM message /*IF after != null*/WHERE id < /*after*/1/*END*/ ORDER BY id DESC LIMIT /*limit*/10")
+    public List<Message> selectPage(Long after, int limit);
+
+    @Arguments( { "offset" })
+    @Sql("SELECT id FROM message ORDER BY id DESC LIMIT 1 OFFSET /*offset*/0")
+    public Long selectKeyAt(int offset);
+
     public void insert(Message message);
+
+    public int insertBatch(List<Message> messages);
 }
@@ -4,11 +4,15 @@ import java.io.Serializable;
 import java.util.Date;
 
 import org.seasar.dao.annotation.tiger.Bean;
+import org.seasar.dao.annotation.tiger.Id;
+import org.seasar.dao.annotation.tiger.IdType;
 
 @Bean(table = "message")
 public class Message implements Serializable {
     private static final long serialVersionUID = 1L;
 
+    @Id(IdType.IDENTITY)
+    public Long id;
     public String name;
     public Date date;
     public String message;
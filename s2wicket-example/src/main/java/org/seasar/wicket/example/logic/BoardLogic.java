@@ -4,6 +4,7 @@ import java.util.Date;
 import java.util.List;
 
 import org.seasar.framework.container.annotation.tiger.Binding;
+import org.seasar.wicket.cache.Cached;
 import org.seasar.wicket.example.dao.MessageDao;
 import org.seasar.wicket.example.entity.Message;
 
@@ -11,6 +12,7 @@ public class BoardLogic {
     @Binding
     MessageDao messageDao;
 
+    @Cached
     public List<Message> getMessages() {
         return messageDao.select();
     }
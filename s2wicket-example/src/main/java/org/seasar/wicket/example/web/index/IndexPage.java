@@ -1,42 +1,50 @@
 package org.seasar.wicket.example.web.index;
 
-import java.util.List;
-
 import org.apache.wicket.markup.html.WebPage;
 import org.apache.wicket.markup.html.basic.Label;
 import org.apache.wicket.markup.html.form.Form;
 import org.apache.wicket.markup.html.form.TextField;
-import org.apache.wicket.markup.html.list.ListItem;
-import org.apache.wicket.markup.html.list.ListView;
+import org.apache.wicket.markup.html.navigation.paging.PagingNavigator;
+import org.apache.wicket.markup.repeater.Item;
+import org.apache.wicket.markup.repeater.data.DataView;
 import org.apache.wicket.model.CompoundPropertyModel;
-import org.apache.wicket.model.PropertyModel;
 import org.seasar.framework.container.annotation.tiger.Binding;
+import org.seasar.wicket.example.dao.MessageDao;
 import org.seasar.wicket.example.entity.Message;
 import org.seasar.wicket.example.logic.BoardLogic;
+import org.seasar.wicket.repeater.S2DaoDataProvider;
 
 public class IndexPage extends WebPage {
     private static final long serialVersionUID = 1L;
 
+    private static final int MESSAGES_PER_PAGE = 20;
+
     @Binding
     private BoardLogic boardLogic;
 
+    private final S2DaoDataProvider<Message> messageProvider =
+            new S2DaoDataProvider<Message>(MessageDao.class, "id");
+
     public IndexPage() {
         // 書き込みフォーム
         add(new IndexPageForm("form"));
 
         // メッセージリスト
-        add(new ListView<Message>("messages", new PropertyModel<List<Message>>(
-                this, "boardLogic.messages")) {
+        DataView<Message> messages =
+                new DataView<Message>("messages", messageProvider,
+                        MESSAGES_PER_PAGE) {
             private static final long serialVersionUID = 1L;
 
             @Override
-            protected void populateItem(ListItem<Message> item) {
+            protected void populateItem(Item<Message> item) {
                 Message message = item.getModelObject();
                 item.add(new Label("name", message.name));
                 item.add(new Label("date", message.date.toString()));
                 item.add(new Label("message", message.message));
             }
-        });
+        };
+        add(messages);
+        add(new PagingNavigator("navigator", messages));
     }
 
     private class IndexPageForm extends Form<IndexPageForm> {
@@ -1,4 +1,5 @@
 CREATE TABLE message (
+  id IDENTITY PRIMARY KEY,
   name VARCHAR(255),
   date TIMESTAMP,
   message VARCHAR(255)
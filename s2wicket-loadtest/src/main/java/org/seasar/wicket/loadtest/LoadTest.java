@@ -0,0 +1,195 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.loadtest;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * s2wicket-exampleを使ったエンドツーエンドの負荷試験。
+ * <p>
+ * 組み込みJettyでS2WicketExampleApplicationを起動し、messageテーブルにデータを投入した後、
+ * 仮想ユーザからIndexPageの表示とフォーム送信を混在させたトラフィックを送ります。
+ * 終了時にスループット、レイテンシのパーセンタイル、セッションあたりのページストア使用量
+ * およびヒープ使用量を出力します。ネットワークはループバックのみを使用します。
+ * </p>
+ * <h4>システムプロパティ</h4>
+ * <dl>
+ * <dt>loadtest.rows</dt>
+ * <dd>事前に投入するmessageテーブルの行数（デフォルト: 1000）</dd>
+ * <dt>loadtest.users</dt>
+ * <dd>仮想ユーザ数（＝セッション数）（デフォルト: 20）</dd>
+ * <dt>loadtest.warmup</dt>
+ * <dd>計測前のウォームアップ秒数（デフォルト: 10）</dd>
+ * <dt>loadtest.duration</dt>
+ * <dd>計測秒数（デフォルト: 30）</dd>
+ * <dt>loadtest.postRatio</dt>
+ * <dd>フォーム送信（POST）の割合（デフォルト: 0.1）</dd>
+ * <dt>loadtest.minThroughput, loadtest.maxP99, loadtest.maxSessionBytes</dt>
+ * <dd>回帰判定の閾値。0より大きい値を指定した場合、満たさなければ終了コード1で終了します。
+ * それぞれ1秒あたりのリクエスト数、99パーセンタイルのミリ秒、セッションあたりのページストアのバイト数です。</dd>
+ * <dt>loadtest.filterParams</dt>
+ * <dd>S2WicketFilterの初期化パラメータを"名前=値"の";"区切りで指定します
+ * （例: -Dloadtest.filterParams="debug=/debug;prefetchThreads=4"）。
+ * mvn -Ploadtest verifyで実行する場合はこちらを使用してください。</dd>
+ * <dt>loadtest.filter.*</dt>
+ * <dd>S2WicketFilterの初期化パラメータとして渡されます（例: -Dloadtest.filter.debug=/debug）。
+ * 直接javaコマンドで実行する場合に使用できます。loadtest.filterParamsより優先されます。</dd>
+ * </dl>
+ */
+public class LoadTest {
+    private static final String FILTER_PARAMETER_PREFIX = "loadtest.filter.";
+
+    public static void main(String[] args) throws Exception {
+        int rows = Integer.getInteger("loadtest.rows", 1000);
+        int users = Integer.getInteger("loadtest.users", 20);
+        int warmup = Integer.getInteger("loadtest.warmup", 10);
+        int duration = Integer.getInteger("loadtest.duration", 30);
+        double postRatio =
+                Double.parseDouble(System.getProperty("loadtest.postRatio",
+                        "0.1"));
+        double minThroughput =
+                Double.parseDouble(System.getProperty(
+                        "loadtest.minThroughput", "0"));
+        double maxP99 =
+                Double.parseDouble(System.getProperty("loadtest.maxP99", "0"));
+        long maxSessionBytes = Long.getLong("loadtest.maxSessionBytes", 0);
+
+        Map<String, String> initParameters = new HashMap<String, String>();
+        String filterParams = System.getProperty("loadtest.filterParams", "");
+        for (String param : filterParams.split(";")) {
+            int index = param.indexOf('=');
+            if (index > 0) {
+                initParameters.put(param.substring(0, index).trim(),
+                        param.substring(index + 1).trim());
+            }
+        }
+        Properties properties = System.getProperties();
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(FILTER_PARAMETER_PREFIX)) {
+                initParameters.put(
+                        name.substring(FILTER_PARAMETER_PREFIX.length()),
+                        properties.getProperty(name));
+            }
+        }
+
+        LoadTestServer server = new LoadTestServer(initParameters);
+        server.start();
+        boolean passed;
+        try {
+            server.seed(rows);
+
+            long heapBefore = usedHeap();
+            long storeBefore = server.getPageStoreBytes();
+
+            LoadTestStatistics statistics = new LoadTestStatistics();
+            URL baseUrl = new URL(server.getBaseUrl());
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < users; ++i) {
+                Thread thread =
+                        new Thread(new VirtualUser(baseUrl, postRatio,
+                                statistics, i), "vu-" + i);
+                thread.setDaemon(true);
+                threads.add(thread);
+                thread.start();
+            }
+
+            Thread.sleep(warmup * 1000L);
+            statistics.startMeasuring();
+            Thread.sleep(duration * 1000L);
+            statistics.finish();
+            for (Thread thread : threads) {
+                thread.join(10000L);
+            }
+
+            long heapAfter = usedHeap();
+            long storeAfter = server.getPageStoreBytes();
+
+            long[] all = statistics.getLatencies(null);
+            long[] gets = statistics.getLatencies(Boolean.FALSE);
+            long[] posts = statistics.getLatencies(Boolean.TRUE);
+            double seconds = statistics.getElapsedSeconds();
+            double throughput = all.length / seconds;
+            int cores = Runtime.getRuntime().availableProcessors();
+            long storePerSession = (storeAfter - storeBefore) / users;
+            long heapPerSession = (heapAfter - heapBefore) / users;
+
+            System.out.println("==== s2wicket load test ====");
+            System.out.printf("rows=%d users=%d warmup=%ds duration=%ds postRatio=%.2f cores=%d%n",
+                    rows, users, warmup, duration, postRatio, cores);
+            System.out.printf("requests=%d errors=%d throughput=%.1f req/s (%.1f req/s/core)%n",
+                    all.length, statistics.getErrorCount(), throughput,
+                    throughput / cores);
+            printLatency("all", all);
+            printLatency("get", gets);
+            printLatency("post", posts);
+            System.out.printf("pageStore=%d bytes (%d bytes/session)%n",
+                    storeAfter, storePerSession);
+            System.out.printf("heap=%d bytes (%d bytes/session)%n", heapAfter,
+                    heapPerSession);
+            if (statistics.getLastError() != null) {
+                System.out.println("last error: " + statistics.getLastError());
+            }
+
+            passed = true;
+            if (minThroughput > 0 && throughput < minThroughput) {
+                System.out.printf("FAILED: throughput %.1f < %.1f%n",
+                        throughput, minThroughput);
+                passed = false;
+            }
+            double p99 = LoadTestStatistics.percentile(all, 99);
+            if (maxP99 > 0 && p99 > maxP99) {
+                System.out.printf("FAILED: p99 %.1fms > %.1fms%n", p99, maxP99);
+                passed = false;
+            }
+            if (maxSessionBytes > 0 && storePerSession > maxSessionBytes) {
+                System.out.printf("FAILED: page store %d bytes/session > %d%n",
+                        storePerSession, maxSessionBytes);
+                passed = false;
+            }
+            if (all.length == 0) {
+                System.out.println("FAILED: no request completed");
+                passed = false;
+            }
+        } finally {
+            server.stop();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private static void printLatency(String label, long[] sorted) {
+        System.out.printf("%-4s n=%d p50=%.2fms p90=%.2fms p99=%.2fms p999=%.2fms max=%.2fms%n",
+                label, sorted.length,
+                LoadTestStatistics.percentile(sorted, 50),
+                LoadTestStatistics.percentile(sorted, 90),
+                LoadTestStatistics.percentile(sorted, 99),
+                LoadTestStatistics.percentile(sorted, 99.9),
+                LoadTestStatistics.percentile(sorted, 100));
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; ++i) {
+            System.gc();
+            Thread.sleep(100L);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
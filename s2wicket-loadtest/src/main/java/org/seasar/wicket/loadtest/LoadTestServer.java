@@ -0,0 +1,197 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.loadtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.EnumSet;
+import java.util.Map;
+
+import javax.servlet.DispatcherType;
+import javax.sql.DataSource;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.protocol.http.WicketFilter;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.nio.SelectChannelConnector;
+import org.eclipse.jetty.servlet.DefaultServlet;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.h2.tools.RunScript;
+import org.seasar.wicket.S2ContainerRegistry;
+import org.seasar.wicket.S2WicketFilter;
+import org.seasar.wicket.example.web.S2WicketExampleApplication;
+
+/**
+ * s2wicket-exampleを組み込みJettyで起動するサーバ。
+ * <p>
+ * ポートは空いているものが自動的に割り当てられ、ループバックアドレスのみで待ち受けます。
+ * </p>
+ * <p>
+ * exampleのjdbc.diconは接続ごとに別の匿名のインメモリデータベースを使用するため、
+ * このモジュールのjdbc.diconで名前付きの共有データベースに置き換えています。
+ * </p>
+ */
+public class LoadTestServer {
+    /** S2WicketFilterのフィルタ名（Wicketのアプリケーションキーになる） */
+    public static final String FILTER_NAME = "s2wicketfilter";
+
+    private final Server server;
+    private final ServletContextHandler context;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param initParameters
+     *            S2WicketFilterへ追加で渡す初期化パラメータ
+     */
+    public LoadTestServer(Map<String, String> initParameters) {
+        server = new Server();
+        SelectChannelConnector connector = new SelectChannelConnector();
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        server.addConnector(connector);
+
+        context =
+                new ServletContextHandler(ServletContextHandler.SESSIONS);
+        context.setContextPath("/");
+
+        FilterHolder filter = new FilterHolder(S2WicketFilter.class);
+        filter.setName(FILTER_NAME);
+        filter.setInitParameter("applicationClassName",
+                S2WicketExampleApplication.class.getName());
+        filter.setInitParameter("configuration", "deployment");
+        filter.setInitParameter(WicketFilter.FILTER_MAPPING_PARAM, "/*");
+        for (Map.Entry<String, String> entry : initParameters.entrySet()) {
+            filter.setInitParameter(entry.getKey(), entry.getValue());
+        }
+        context.addFilter(filter, "/*", EnumSet.of(DispatcherType.REQUEST));
+        context.addServlet(DefaultServlet.class, "/");
+        server.setHandler(context);
+    }
+
+    public void start() throws Exception {
+        server.start();
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+    }
+
+    public String getBaseUrl() {
+        return "http://127.0.0.1:" + server.getConnectors()[0].getLocalPort()
+                + "/";
+    }
+
+    public WebApplication getApplication() {
+        return (WebApplication) Application.get(FILTER_NAME);
+    }
+
+    /**
+     * messageテーブルにダミーデータを投入します。テーブルがなければinit.sqlで作成します。
+     * <p>
+     * DataSourceはアプリケーションのS2Containerから取得するため、singletonContainer=falseでも使用できます。
+     * </p>
+     *
+     * @param rows
+     *            投入する行数
+     */
+    public void seed(int rows) throws SQLException, IOException {
+        DataSource dataSource =
+                (DataSource) S2ContainerRegistry.getContainer(
+                        S2ContainerRegistry.toApplicationKey(
+                                context.getServletContext(), FILTER_NAME))
+                        .getComponent(DataSource.class);
+        Connection connection = dataSource.getConnection();
+        try {
+            if (!hasTable(connection, "MESSAGE")) {
+                InputStream in =
+                        LoadTestServer.class.getClassLoader().getResourceAsStream(
+                                "init.sql");
+                try {
+                    RunScript.execute(connection, new InputStreamReader(in,
+                            "UTF-8"));
+                } finally {
+                    in.close();
+                }
+            }
+            PreparedStatement ps =
+                    connection.prepareStatement("INSERT INTO message (name, date, message) VALUES (?, ?, ?)");
+            try {
+                long now = System.currentTimeMillis();
+                for (int i = 0; i < rows; ++i) {
+                    ps.setString(1, "user" + (i % 100));
+                    ps.setTimestamp(2, new Timestamp(now - (rows - i) * 1000L));
+                    ps.setString(3, "seeded message #" + i);
+                    ps.addBatch();
+                    if (i % 1000 == 999) {
+                        ps.executeBatch();
+                    }
+                }
+                ps.executeBatch();
+            } finally {
+                ps.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    private static boolean hasTable(Connection connection, String name)
+            throws SQLException {
+        ResultSet rs =
+                connection.getMetaData().getTables(null, null, name, null);
+        try {
+            return rs.next();
+        } finally {
+            rs.close();
+        }
+    }
+
+    /**
+     * ディスクのページストアが使用しているバイト数を取得します。
+     */
+    public long getPageStoreBytes() {
+        File folder =
+                getApplication().getStoreSettings().getFileStoreFolder();
+        return sizeOf(folder);
+    }
+
+    private static long sizeOf(File file) {
+        if (file == null || !file.exists()) {
+            return 0;
+        }
+        if (file.isFile()) {
+            return file.length();
+        }
+        long size = 0;
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                size += sizeOf(child);
+            }
+        }
+        return size;
+    }
+}
@@ -0,0 +1,161 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.loadtest;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 負荷試験中のレイテンシを集計するクラス。
+ * <p>
+ * 計測はスレッドごとのバッファに記録し、計測終了後にまとめてパーセンタイルを計算します。
+ * ウォームアップ中のリクエストは集計されません。
+ * </p>
+ */
+public class LoadTestStatistics {
+    private final Queue<Recorder> recorders =
+            new ConcurrentLinkedQueue<Recorder>();
+    private final ThreadLocal<Recorder> recorder = new ThreadLocal<Recorder>() {
+        @Override
+        protected Recorder initialValue() {
+            Recorder r = new Recorder();
+            recorders.add(r);
+            return r;
+        }
+    };
+    private final AtomicLong errors = new AtomicLong();
+
+    private volatile boolean measuring;
+    private volatile boolean finished;
+    private volatile Throwable lastError;
+
+    private long measureStart;
+    private long measureEnd;
+
+    public void startMeasuring() {
+        measureStart = System.nanoTime();
+        measuring = true;
+    }
+
+    public void finish() {
+        measuring = false;
+        finished = true;
+        measureEnd = System.nanoTime();
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public void record(boolean post, long nanos) {
+        if (measuring) {
+            recorder.get().add(post, nanos);
+        }
+    }
+
+    public void recordError(Throwable t) {
+        if (measuring) {
+            errors.incrementAndGet();
+            lastError = t;
+        }
+    }
+
+    public long getErrorCount() {
+        return errors.get();
+    }
+
+    public Throwable getLastError() {
+        return lastError;
+    }
+
+    public double getElapsedSeconds() {
+        return (measureEnd - measureStart) / 1e9;
+    }
+
+    /**
+     * 計測結果をまとめます。{@link #finish()}の後に呼び出してください。
+     *
+     * @param post
+     *            POSTのみを対象にする場合はtrue、GETのみの場合はfalse、両方の場合はnull
+     */
+    public long[] getLatencies(Boolean post) {
+        int size = 0;
+        for (Recorder r : recorders) {
+            size += r.size(post);
+        }
+        long[] all = new long[size];
+        int pos = 0;
+        for (Recorder r : recorders) {
+            pos = r.copyTo(post, all, pos);
+        }
+        Arrays.sort(all);
+        return all;
+    }
+
+    /**
+     * ソート済みの配列からパーセンタイル値をミリ秒で取得します。
+     */
+    public static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(percentile / 100.0 * sorted.length) - 1;
+        index = Math.max(0, Math.min(sorted.length - 1, index));
+        return sorted[index] / 1e6;
+    }
+
+    private static class Recorder {
+        private long[] gets = new long[1024];
+        private long[] posts = new long[256];
+        private int getSize;
+        private int postSize;
+
+        void add(boolean post, long nanos) {
+            if (post) {
+                if (postSize == posts.length) {
+                    posts = Arrays.copyOf(posts, postSize * 2);
+                }
+                posts[postSize++] = nanos;
+            } else {
+                if (getSize == gets.length) {
+                    gets = Arrays.copyOf(gets, getSize * 2);
+                }
+                gets[getSize++] = nanos;
+            }
+        }
+
+        int size(Boolean post) {
+            if (post == null) {
+                return getSize + postSize;
+            }
+            return post ? postSize : getSize;
+        }
+
+        int copyTo(Boolean post, long[] dest, int pos) {
+            if (post == null || !post) {
+                System.arraycopy(gets, 0, dest, pos, getSize);
+                pos += getSize;
+            }
+            if (post == null || post) {
+                System.arraycopy(posts, 0, dest, pos, postSize);
+                pos += postSize;
+            }
+            return pos;
+        }
+    }
+}
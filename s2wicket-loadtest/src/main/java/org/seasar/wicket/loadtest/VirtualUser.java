@@ -0,0 +1,175 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.loadtest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * 1セッション分のブラウザを模倣する仮想ユーザ。
+ * <p>
+ * IndexPageの表示（GET）と書き込みフォームの送信（POST）を指定の比率で繰り返します。
+ * Cookieとリダイレクトは自前で処理するため、仮想ユーザごとに独立したセッションが維持されます。
+ * </p>
+ */
+public class VirtualUser implements Runnable {
+    private static final Pattern FORM_ACTION =
+            Pattern.compile("<form[^>]*action=\"([^\"]*)\"");
+    private static final int MAX_REDIRECTS = 5;
+
+    private final URL baseUrl;
+    private final double postRatio;
+    private final LoadTestStatistics statistics;
+    private final Random random;
+
+    private String sessionCookie;
+    private URL currentUrl;
+    private String formAction;
+    private int sequence;
+
+    public VirtualUser(URL baseUrl, double postRatio,
+            LoadTestStatistics statistics, long seed) {
+        this.baseUrl = baseUrl;
+        this.postRatio = postRatio;
+        this.statistics = statistics;
+        this.random = new Random(seed);
+    }
+
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()
+                && !statistics.isFinished()) {
+            boolean post = formAction != null && random.nextDouble() < postRatio;
+            long start = System.nanoTime();
+            try {
+                if (post) {
+                    post();
+                } else {
+                    get();
+                }
+                statistics.record(post, System.nanoTime() - start);
+            } catch (IOException e) {
+                statistics.recordError(e);
+            }
+        }
+    }
+
+    private void get() throws IOException {
+        execute(baseUrl, null);
+    }
+
+    private void post() throws IOException {
+        String body =
+                "name=" + URLEncoder.encode("vu" + hashCode(), "UTF-8")
+                        + "&message="
+                        + URLEncoder.encode("load test message " + sequence++,
+                                "UTF-8");
+        execute(new URL(currentUrl, formAction), body);
+    }
+
+    private void execute(URL url, String postBody) throws IOException {
+        for (int i = 0; i <= MAX_REDIRECTS; ++i) {
+            HttpURLConnection connection =
+                    (HttpURLConnection) url.openConnection();
+            connection.setInstanceFollowRedirects(false);
+            connection.setUseCaches(false);
+            if (sessionCookie != null) {
+                connection.setRequestProperty("Cookie", sessionCookie);
+            }
+            if (postBody != null) {
+                byte[] data = postBody.getBytes("UTF-8");
+                connection.setRequestMethod("POST");
+                connection.setDoOutput(true);
+                connection.setRequestProperty("Content-Type",
+                        "application/x-www-form-urlencoded; charset=UTF-8");
+                connection.setFixedLengthStreamingMode(data.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+            }
+
+            int status = connection.getResponseCode();
+            storeCookie(connection);
+            if (status == HttpURLConnection.HTTP_MOVED_TEMP
+                    || status == HttpURLConnection.HTTP_MOVED_PERM
+                    || status == HttpURLConnection.HTTP_SEE_OTHER) {
+                String location = connection.getHeaderField("Location");
+                drain(connection.getInputStream());
+                url = new URL(url, location);
+                postBody = null;
+                continue;
+            }
+            if (status != HttpURLConnection.HTTP_OK) {
+                drain(connection.getErrorStream());
+                throw new IOException("unexpected status " + status + ": "
+                        + url);
+            }
+
+            String html = new String(read(connection.getInputStream()), "UTF-8");
+            currentUrl = url;
+            Matcher matcher = FORM_ACTION.matcher(html);
+            if (matcher.find()) {
+                formAction = matcher.group(1).replace("&amp;", "&");
+            }
+            return;
+        }
+        throw new IOException("too many redirects: " + url);
+    }
+
+    private void storeCookie(HttpURLConnection connection) {
+        List<String> cookies = connection.getHeaderFields().get("Set-Cookie");
+        if (cookies == null) {
+            return;
+        }
+        for (String cookie : cookies) {
+            if (cookie.startsWith("JSESSIONID=")) {
+                int end = cookie.indexOf(';');
+                sessionCookie = end < 0 ? cookie : cookie.substring(0, end);
+            }
+        }
+    }
+
+    private static byte[] read(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        if (in != null) {
+            read(in);
+        }
+    }
+}
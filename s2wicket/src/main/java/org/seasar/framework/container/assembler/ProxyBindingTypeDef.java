@@ -48,8 +48,16 @@ public class ProxyBindingTypeDef extends BindingTypeMayDef {
             return LazyInitProxyFactory.createProxy((Class<?>) key,
                     new S2ProxyTargetLocator(key));
         } else {
-            // keyがコンポーネント名の場合があるのかわからないが、
-            // 一度値を取り出してそのクラスタイプでpxoryを作成
+            // keyがコンポーネント名の場合は、コンポーネントを生成せずに定義からクラスタイプを取り出す
+            // （セッションスコープのコンポーネントを取り出すとHttpSessionが作られてしまうため）
+            ComponentDef targetDef =
+                    componentDef.getContainer().getComponentDef(key);
+            if (targetDef.getComponentClass() != null) {
+                return LazyInitProxyFactory.createProxy(
+                        targetDef.getComponentClass(),
+                        new S2ProxyTargetLocator(key));
+            }
+            // クラスタイプがわからない場合は、一度値を取り出してそのクラスタイプでproxyを作成
             Object value =
                     super.getValue(componentDef, key, component, propertyName);
             return LazyInitProxyFactory.createProxy(value.getClass(),
@@ -15,6 +15,9 @@
  */
 package org.seasar.framework.container.creator;
 
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 
 import org.apache.wicket.Component;
@@ -43,6 +46,10 @@ import org.slf4j.LoggerFactory;
  * <li>インターフェースでない</li>
  * <li>抽象クラスでない</li>
  * </ul>
+ * <p>
+ * アスペクトやインタータイプの指定（アノテーションまたは定数アノテーション）がないクラスでは、
+ * それらの読み取りを行わないため、エンハンスされたクラスは生成されません。
+ * </p>
  * 
  * @author TAKEUCHI Hideyuki (chimerast)
  */
@@ -52,6 +59,14 @@ public class WicketCreator extends ComponentCreatorImpl {
     /** S2Containerへクラスを登録する際の接頭辞 */
     public static final String COMPONENTNAME_PREFIX = "s2wicket$";
 
+    private static final String ANNOTATION_PACKAGE =
+            "org.seasar.framework.container.annotation.tiger.";
+    private static final String ASPECT_ANNOTATION = ANNOTATION_PACKAGE + "Aspect";
+    private static final String INTER_TYPE_ANNOTATION =
+            ANNOTATION_PACKAGE + "InterType";
+    private static final String INTERCEPTOR_ANNOTATION =
+            ANNOTATION_PACKAGE + "Interceptor";
+
     public WicketCreator(NamingConvention namingConvention) {
         super(namingConvention);
         setNameSuffix(namingConvention.getPageSuffix());
@@ -92,11 +107,73 @@ public class WicketCreator extends ComponentCreatorImpl {
         customize(cd);
         handler.appendInitMethod(cd);
         handler.appendDestroyMethod(cd);
-        handler.appendAspect(cd);
-        handler.appendInterType(cd);
+        // 指定がなければエンハンスの対象にしない
+        if (hasAspect(targetClass)) {
+            handler.appendAspect(cd);
+        }
+        if (hasInterType(targetClass)) {
+            handler.appendInterType(cd);
+        }
         return cd;
     }
 
+    /*
+     * クラスまたはpublicメソッドにアスペクトが指定されているかどうかを判定します。
+     */
+    static boolean hasAspect(Class<?> targetClass) {
+        if (hasConstant(targetClass, "ASPECT")
+                || isAspectAnnotated(targetClass.getAnnotations())) {
+            return true;
+        }
+        for (Method method : targetClass.getMethods()) {
+            if (!Modifier.isFinal(method.getModifiers())
+                    && isAspectAnnotated(method.getAnnotations())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isAspectAnnotated(Annotation[] annotations) {
+        for (Annotation annotation : annotations) {
+            Class<? extends Annotation> type = annotation.annotationType();
+            if (ASPECT_ANNOTATION.equals(type.getName())) {
+                return true;
+            }
+            // @Interceptorが付いた独自のインターセプタアノテーション
+            for (Annotation meta : type.getAnnotations()) {
+                if (INTERCEPTOR_ANNOTATION.equals(meta.annotationType().getName())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /*
+     * クラスにインタータイプが指定されているかどうかを判定します。
+     */
+    static boolean hasInterType(Class<?> targetClass) {
+        if (hasConstant(targetClass, "INTER_TYPE")) {
+            return true;
+        }
+        for (Annotation annotation : targetClass.getAnnotations()) {
+            if (INTER_TYPE_ANNOTATION.equals(annotation.annotationType().getName())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasConstant(Class<?> targetClass, String name) {
+        try {
+            Field field = targetClass.getField(name);
+            return Modifier.isStatic(field.getModifiers());
+        } catch (NoSuchFieldException e) {
+            return false;
+        }
+    }
+
     @Override
     public void customize(ComponentDef componentDef) {
         super.customize(componentDef);
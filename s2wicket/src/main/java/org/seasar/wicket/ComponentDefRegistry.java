@@ -0,0 +1,136 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.ComponentNotFoundRuntimeException;
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.container.creator.WicketCreator;
+import org.seasar.framework.container.util.SmartDeployUtil;
+
+/**
+ * WicketコンポーネントのクラスとS2ContainerのComponentDefの対応を保持するクラス。
+ * <p>
+ * WarmDeployではS2Containerへの登録が同期化されているため、起動直後に多くのスレッドが
+ * 同時にページを生成すると、登録済みのクラスの取得までがその同期で待たされます。
+ * このクラスはクラスごとに一度だけS2Containerに問い合わせ、同じクラスを同時に要求した
+ * 他のスレッドはそのクラスの結果だけを待ちます。一度求めた結果はロックなしで返します。
+ * </p>
+ * <p>
+ * 結果はS2Containerごとに保持します。S2Containerが作り直された場合は最初から求め直します。
+ * </p>
+ */
+public class ComponentDefRegistry {
+    private final AtomicReference<Entries> entries =
+            new AtomicReference<Entries>();
+
+    /**
+     * クラスに対応するComponentDefを返します。
+     * WarmDeployの場合、未登録のクラスはS2Containerに登録されます。
+     *
+     * @param container
+     *            S2Container
+     * @param target
+     *            Wicketコンポーネントのクラス
+     * @return ComponentDef。登録の対象でないクラスの場合はnull
+     */
+    public ComponentDef getComponentDef(final S2Container container,
+            final Class<?> target) {
+        Entries current = entries.get();
+        while (current == null || current.container != container) {
+            // 同時に入れ替えたスレッドが別々に問い合わせないよう、入れ替えは1つだけ成功させる
+            Entries created = new Entries(container);
+            if (entries.compareAndSet(current, created)) {
+                current = created;
+            } else {
+                current = entries.get();
+            }
+        }
+
+        FutureTask<ComponentDef> future = current.map.get(target);
+        if (future == null) {
+            FutureTask<ComponentDef> task =
+                    new FutureTask<ComponentDef>(new Callable<ComponentDef>() {
+                        public ComponentDef call() {
+                            return lookup(container, target);
+                        }
+                    });
+            future = current.map.putIfAbsent(target, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        } catch (ExecutionException e) {
+            // 失敗した結果は保持せず、次の要求で求め直す
+            current.map.remove(target, future);
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * 保持している結果を破棄します。
+     */
+    public void clear() {
+        entries.set(null);
+    }
+
+    private static ComponentDef lookup(S2Container container, Class<?> target) {
+        // WarmDeploy時のComponentのロード＆登録
+        if (SmartDeployUtil.isWarmdeployMode(container)) {
+            try {
+                container.getComponentDef(target);
+            } catch (ComponentNotFoundRuntimeException ignore) {
+            }
+        }
+
+        String name =
+                WicketCreator.COMPONENTNAME_PREFIX + target.getCanonicalName();
+        if (container.hasComponentDef(name)) {
+            return container.getComponentDef(name);
+        }
+        return null;
+    }
+
+    private static final class Entries {
+        final S2Container container;
+        final ConcurrentMap<Class<?>, FutureTask<ComponentDef>> map =
+                new ConcurrentHashMap<Class<?>, FutureTask<ComponentDef>>();
+
+        Entries(S2Container container) {
+            this.container = container;
+        }
+    }
+}
@@ -17,41 +17,44 @@ package org.seasar.wicket;
 
 import org.apache.wicket.Component;
 import org.apache.wicket.application.IComponentInstantiationListener;
-import org.seasar.framework.container.ComponentNotFoundRuntimeException;
-import org.seasar.framework.container.S2Container;
-import org.seasar.framework.container.creator.WicketCreator;
-import org.seasar.framework.container.factory.SingletonS2ContainerFactory;
-import org.seasar.framework.container.util.SmartDeployUtil;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.wicket.profiling.RequestTrace;
 
 /**
  * WicketのComponent初期化時に依存性注入を行うためのコンポーネント初期化リスナ。
  * S2WicketFilter内でWebApplication初期化後に自動的に登録します。
+ * <p>
+ * フィールドに注入するのは遅延取得のプロクシのみで、コンポーネントの状態やビヘイビアは変更せず、
+ * HttpSessionも作成しないため、注入によってステートレスなページがステートフルになることはありません。
+ * </p>
+ * <p>
+ * クラスに対応するComponentDefは{@link ComponentDefRegistry}で求めるため、
+ * 同じクラスのS2Containerへの登録と問い合わせはクラスごとに一度だけ行われます。
+ * </p>
  * 
  * @author TAKEUCHI Hideyuki (chimerast)
  */
 public class ComponentInjectionListener implements
         IComponentInstantiationListener {
+    private final ComponentDefRegistry registry = new ComponentDefRegistry();
+
     public void onInstantiation(Component component) {
         Class<?> target = component.getClass();
         if (target.getCanonicalName() == null) {
             return;
         }
-        String name =
-                WicketCreator.COMPONENTNAME_PREFIX + target.getCanonicalName();
-
-        S2Container container = SingletonS2ContainerFactory.getContainer();
 
-        // WarmDeploy時のComponentのロード＆登録
-        if (SmartDeployUtil.isWarmdeployMode(container)) {
-            try {
-                container.getComponentDef(target);
-            } catch (ComponentNotFoundRuntimeException ignore) {
+        long start = RequestTrace.enter(RequestTrace.INJECTION);
+        try {
+            // コンポーネントが名前で登録されていれば注入
+            ComponentDef componentDef =
+                    registry.getComponentDef(
+                            S2ContainerRegistry.getContainer(), target);
+            if (componentDef != null) {
+                componentDef.injectDependency(component);
             }
-        }
-
-        // コンポーネントが名前で登録されていれば注入
-        if (container.hasComponentDef(name)) {
-            container.injectDependency(component, name);
+        } finally {
+            RequestTrace.exit(RequestTrace.INJECTION, start, null);
         }
     }
 }
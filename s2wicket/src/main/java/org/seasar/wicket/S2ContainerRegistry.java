@@ -0,0 +1,229 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.servlet.ServletContext;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.container.factory.S2ContainerFactory;
+import org.seasar.framework.container.factory.SingletonS2ContainerFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WicketのアプリケーションごとのS2Containerを保持するクラス。
+ * <p>
+ * S2WicketFilterはアプリケーションキー（コンテキストパスとフィルタ名）でS2Containerを登録し、
+ * S2Wicketのクラスは{@link #getContainer()}で現在のアプリケーションのS2Containerを取得します。
+ * これにより、1つのJVMで複数のWicketアプリケーションを動かしても、それぞれのS2Containerから注入されます。
+ * 現在のスレッドにアプリケーションがないか、登録されていない場合は、
+ * 互換性のためSingletonS2ContainerFactoryのS2Containerを返します。
+ * </p>
+ * <p>
+ * また、DataSourceやDao、キャッシュなどの重いシングルトンを複数のアプリケーションで共有するため、
+ * 共有のS2Containerを{@link #acquireSharedContainer(String)}で作成できます。
+ * 共有のS2Containerは参照数で管理され、最後のアプリケーションが解放した時に破棄されます。
+ * 特定のアプリケーションのクラスローダを保持しないよう、このクラスを読み込んだクラスローダで作成されるため、
+ * 共有するには、このクラスとdiconのコンポーネントのクラスを共通のクラスローダに配置してください。
+ * 各アプリケーションのS2Containerにインクルードされますが、アプリケーションのS2Containerの破棄では破棄されません。
+ * 共有のS2Containerのdiconには、リクエストなどに依存するコンポーネントやSMART Deployの設定を含めないでください。
+ * </p>
+ */
+public final class S2ContainerRegistry {
+    private static final Logger logger =
+            LoggerFactory.getLogger(S2ContainerRegistry.class);
+
+    private static final ConcurrentMap<String, S2Container> containers =
+            new ConcurrentHashMap<String, S2Container>();
+
+    private static final Map<String, SharedContainer> sharedContainers =
+            new HashMap<String, SharedContainer>();
+
+    private S2ContainerRegistry() {
+    }
+
+    /**
+     * アプリケーションキーを作成します。
+     * 同じフィルタ名を使う複数のWebアプリケーションを区別するため、コンテキストパスで修飾します。
+     *
+     * @param servletContext
+     *            サーブレットコンテキスト
+     * @param name
+     *            Wicketのアプリケーションキー（フィルタ名）
+     */
+    public static String toApplicationKey(ServletContext servletContext,
+            String name) {
+        return servletContext.getContextPath() + ":" + name;
+    }
+
+    /**
+     * アプリケーションのS2Containerを登録します。
+     *
+     * @param applicationKey
+     *            {@link #toApplicationKey(ServletContext, String)}で作成したキー
+     */
+    public static void register(String applicationKey, S2Container container) {
+        containers.put(applicationKey, container);
+    }
+
+    /**
+     * アプリケーションのS2Containerの登録を解除します。
+     */
+    public static void unregister(String applicationKey) {
+        containers.remove(applicationKey);
+    }
+
+    /**
+     * アプリケーションのS2Containerを取得します。
+     *
+     * @param applicationKey
+     *            アプリケーションキー。nullの場合は現在のアプリケーション
+     */
+    public static S2Container getContainer(String applicationKey) {
+        if (applicationKey != null) {
+            S2Container container = containers.get(applicationKey);
+            if (container != null) {
+                return container;
+            }
+        }
+        return getContainer();
+    }
+
+    /**
+     * 現在のスレッドのアプリケーションのS2Containerを取得します。
+     */
+    public static S2Container getContainer() {
+        String applicationKey = getCurrentApplicationKey();
+        if (applicationKey != null) {
+            S2Container container = containers.get(applicationKey);
+            if (container != null) {
+                return container;
+            }
+        }
+        return SingletonS2ContainerFactory.getContainer();
+    }
+
+    /**
+     * 現在のスレッドのアプリケーションキーを取得します。
+     *
+     * @return アプリケーションがない場合はnull
+     */
+    public static String getCurrentApplicationKey() {
+        if (!Application.exists()) {
+            return null;
+        }
+        Application application = Application.get();
+        if (application instanceof WebApplication) {
+            ServletContext servletContext =
+                    ((WebApplication) application).getServletContext();
+            if (servletContext != null) {
+                return toApplicationKey(servletContext,
+                        application.getApplicationKey());
+            }
+        }
+        return application.getApplicationKey();
+    }
+
+    /**
+     * 共有のS2Containerを取得します。まだ作成されていなければ作成して初期化します。
+     * 取得したS2Containerは{@link #releaseSharedContainer(String)}で解放してください。
+     *
+     * @param path
+     *            diconファイルのパス
+     * @return アプリケーションのS2Containerにインクルードするための、破棄されないS2Container
+     */
+    public static synchronized S2Container acquireSharedContainer(String path) {
+        SharedContainer shared = sharedContainers.get(path);
+        if (shared == null) {
+            // 最初に取得したアプリケーションのクラスローダを使うと、他のアプリケーションとクラスが一致せず、
+            // そのクラスローダも解放されなくなるため、共通のクラスローダで作成する
+            ClassLoader classLoader = S2ContainerRegistry.class.getClassLoader();
+            Thread thread = Thread.currentThread();
+            ClassLoader originalLoader = thread.getContextClassLoader();
+            S2Container container;
+            thread.setContextClassLoader(classLoader);
+            try {
+                container = S2ContainerFactory.create(path, classLoader);
+                container.init();
+            } finally {
+                thread.setContextClassLoader(originalLoader);
+            }
+            shared = new SharedContainer(container);
+            sharedContainers.put(path, shared);
+            logger.info("[shared] created shared container: {}", path);
+        }
+        shared.references++;
+        return shared.view;
+    }
+
+    /**
+     * 共有のS2Containerを解放します。参照がなくなった場合は破棄します。
+     */
+    public static synchronized void releaseSharedContainer(String path) {
+        SharedContainer shared = sharedContainers.get(path);
+        if (shared == null) {
+            return;
+        }
+        if (--shared.references <= 0) {
+            sharedContainers.remove(path);
+            shared.container.destroy();
+            logger.info("[shared] destroyed shared container: {}", path);
+        }
+    }
+
+    private static final class SharedContainer {
+        final S2Container container;
+        final S2Container view;
+        int references;
+
+        SharedContainer(final S2Container container) {
+            this.container = container;
+            // インクルード先による破棄や親の設定が共有のS2Containerに及ばないようにする
+            this.view =
+                    (S2Container) Proxy.newProxyInstance(
+                            S2Container.class.getClassLoader(),
+                            new Class<?>[] { S2Container.class },
+                            new InvocationHandler() {
+                                public Object invoke(Object proxy,
+                                        Method method, Object[] args)
+                                        throws Throwable {
+                                    String name = method.getName();
+                                    if ("destroy".equals(name)
+                                            || "setRoot".equals(name)
+                                            || "addParent".equals(name)) {
+                                        return null;
+                                    }
+                                    try {
+                                        return method.invoke(container, args);
+                                    } catch (InvocationTargetException e) {
+                                        throw e.getCause();
+                                    }
+                                }
+                            });
+        }
+    }
+}
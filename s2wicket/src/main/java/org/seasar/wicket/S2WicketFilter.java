@@ -18,6 +18,9 @@ package org.seasar.wicket;
 import java.io.IOException;
 import java.net.URL;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import javax.servlet.FilterChain;
 import javax.servlet.FilterConfig;
@@ -25,6 +28,7 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
 
 import org.apache.wicket.Application;
@@ -43,7 +47,21 @@ import org.seasar.framework.container.factory.SingletonS2ContainerFactory;
 import org.seasar.framework.container.filter.S2ContainerFilter;
 import org.seasar.framework.container.util.SmartDeployUtil;
 import org.seasar.framework.exception.EmptyRuntimeException;
+import org.seasar.wicket.admission.AdmissionController;
 import org.seasar.wicket.debug.S2DebugPage;
+import org.seasar.wicket.diagnostics.DiagnosticSerializer;
+import org.seasar.wicket.diagnostics.StatelessDiagnostics;
+import org.seasar.wicket.model.ModelPrefetcher;
+import org.seasar.wicket.pagestore.AccountingSerializer;
+import org.seasar.wicket.pagestore.PageStoreAccounting;
+import org.seasar.wicket.pagestore.S2PageManagerProvider;
+import org.seasar.wicket.profiling.RequestTrace;
+import org.seasar.wicket.profiling.TracingSerializer;
+import org.seasar.wicket.reloading.ClassChangeWatcher;
+import org.seasar.wicket.response.OptimizedResponse;
+import org.seasar.wicket.response.ResponseOptimizer;
+import org.seasar.wicket.startup.StartupTimeline;
+import org.seasar.wicket.warmup.WarmupRunner;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -63,6 +81,10 @@ import org.slf4j.LoggerFactory;
  * <dd>クラスリロード時に全クラスローダで読み込まれたセッション上のインスタンスを破棄します。
  * クラスローダの違いによってセッションでエラーが出るのを回避します。<br>
  * ただしpreventSessionInvalidationInDevModeがtrueに設定されているときにはこの動作を行いません。</dd>
+ * <dt>クラスファイルの変更の検知</dt>
+ * <dd>Java 7以降では、クラスパスのディレクトリをWatchServiceで監視して変更を検知します。
+ * 読み込んだクラスファイルを定期的に確認する必要がなく、まとめてコンパイルされた場合も一度だけリロードします。
+ * それ以外の環境、またはreloadingWatchServiceにfalseを指定した場合は、ReloadingClassLoaderによる定期的な確認になります。</dd>
  * </dl>
  * <h4>初期化パラメータ</h4>
  * <dl>
@@ -78,10 +100,92 @@ import org.slf4j.LoggerFactory;
  * ここで、指定しなければクラスの自動リロードは行われません。","区切りによる複数クラスの指定、
  * および"*"によるワイルドカード指定が可能です。また、クラスパターンの頭に"-"をつけることで、
  * リロード対象から除外することができます。通常はconvention.diconで追加したrootPackageNameを指定します。</dd>
+ * <dt>reloadingWatchService</dt>
+ * <dd>クラスファイルの変更をWatchServiceで検知するかどうかを指定します。デフォルトはtrueです。
+ * JDK 7以上でビルドされたS2WicketをJava 7以上で実行している場合のみ有効です。</dd>
+ * <dt>reloadingQuietPeriod</dt>
+ * <dd>WatchServiceで変更を検知した時に、変更が止まってからリロードするまでの時間をミリ秒で指定します。デフォルトは300です。</dd>
  * <dt>preventSessionInvalidationInDevMode</dt>
  * <dd>Wicketのコンフィギュレーションがdevelopmentの時、
  * S2WicketFilterはクラスローダの変更を検知するとセッション上のインスタンスを破棄しようとしますが、
  * このオプションをtrueに設定することで、破棄しないようになります。</dd>
+ * <dt>sharedConfigPath</dt>
+ * <dd>複数のアプリケーションで共有するS2Containerのdiconファイルのパスを指定します。
+ * DataSourceやDao、キャッシュなどの重いシングルトンを定義し、同じパスを指定したアプリケーションの間で共有します。
+ * 共有のS2Containerは各アプリケーションのS2Containerにインクルードされ、最後のアプリケーションの終了時に破棄されます。
+ * 共有のS2ContainerはS2Wicketを読み込んだクラスローダで作成されるため、S2Wicketとdiconのコンポーネントのクラスは
+ * 各アプリケーションではなく共通のクラスローダに配置してください。</dd>
+ * <dt>singletonContainer</dt>
+ * <dd>アプリケーションのS2ContainerをSingletonS2ContainerFactoryにも設定するかどうかを指定します。
+ * S2Wicketはアプリケーションごとに{@link S2ContainerRegistry}でS2Containerを管理するため、
+ * 1つのJVMで複数のアプリケーションを動かす場合はfalseを指定してください。デフォルトはtrueです。</dd>
+ * <dt>parallelInit</dt>
+ * <dd>trueを指定すると、S2Containerの初期化（コンポーネントの生成）を別スレッドで行い、
+ * Wicketのアプリケーションの初期化と並行して行います。
+ * Wicketの初期化中に使用されたコンポーネントはその場で生成されるため、
+ * コンポーネントの初期化順序に依存していない場合にのみ指定してください。デフォルトはfalseです。</dd>
+ * <dt>statelessDiagnostics</dt>
+ * <dd>trueを指定すると、ページクラスごとにステートレスのまま処理されたかどうか、
+ * ステートフルの原因となったコンポーネント、ページストアに格納された回数とバイト数を集計し、
+ * JMXで公開します。デフォルトはfalseです。</dd>
+ * <dt>pageStoreAccounting</dt>
+ * <dd>trueを指定すると、ページストアに格納されたページのバイト数をセッションごと、ページクラスごとに集計し、
+ * 上位のセッションとページクラスをJMXで公開します。デフォルトはfalseです。</dd>
+ * <dt>maxPageStoreBytesPerSession</dt>
+ * <dd>セッションごとにページストアに格納するバイト数の上限を指定します。
+ * 上限を超えると古いページから破棄されます。指定した場合はpageStoreAccountingも有効になります。</dd>
+ * <dt>pageCacheMaxBytes</dt>
+ * <dd>シリアライズされたページをメモリに保持するバイト数の上限を指定します。
+ * ページ数で制限されるWicketのキャッシュとは別に、ディスクに格納する手前でページを保持します。
+ * 指定しなければ保持しません。</dd>
+ * <dt>pageCacheMaxBytesPerSession</dt>
+ * <dd>セッションごとにメモリに保持するバイト数の上限を指定します。デフォルトはpageCacheMaxBytesの1/8です。</dd>
+ * <dt>pageCacheSegments</dt>
+ * <dd>メモリに保持するページを分けるセグメント（ロックの単位）の数を指定します。デフォルトは16です。</dd>
+ * <dt>warmupPages</dt>
+ * <dd>初期化の最後に模擬リクエストで表示するページのパス（フィルタのパスからの相対パス）を","区切りで指定します。
+ * "*"を指定すると、ホームページとS2Containerに登録されているデフォルトコンストラクタを持つすべてのページが対象になります。
+ * 表示は別スレッドで行われます。指定しなければ行いません。</dd>
+ * <dt>warmupIterations</dt>
+ * <dd>warmupPagesのページを表示する回数を指定します。デフォルトは1です。</dd>
+ * <dt>readinessPath</dt>
+ * <dd>リクエストを受け付けられる状態かどうかを返すパスを指定します。
+ * warmupPagesのページの表示が終わるまでは503を、終わった後は200を返します。
+ * 表示に失敗したページ（Wicketで処理されなかったもの、400以上のステータスを返したものを含む）があった場合は、503を返し続けます。
+ * ロードバランサのヘルスチェックに指定してください。</dd>
+ * <dt>slowRequestThreshold</dt>
+ * <dd>リクエストの処理時間の内訳（注入、プロクシの実体の取得、コンポーネントの呼び出し、シリアライズ）を記録し、
+ * 指定したミリ秒以上かかったリクエストをログに出力します。指定しなければ記録しません。
+ * コンポーネントの呼び出しを記録するには、RequestTraceInterceptorを適用してください。</dd>
+ * <dt>maxConcurrentPages, maxConcurrentAjax, maxConcurrentResources</dt>
+ * <dd>ページ、Ajax、リソースのリクエストをそれぞれ同時に処理する数の上限を指定します。
+ * 上限に達するとadmissionQueueSizeの数までのリクエストがadmissionMaxWaitミリ秒まで待ち、
+ * それ以外のリクエストには503を返します。指定しない種類は制限しません。</dd>
+ * <dt>admissionQueueSize</dt>
+ * <dd>上限に達した時に、種類ごとに待つことのできるリクエストの数を指定します。デフォルトは0です。</dd>
+ * <dt>admissionMaxWait</dt>
+ * <dd>上限に達した時に待つ最大の時間をミリ秒で指定します。デフォルトは1000です。</dd>
+ * <dt>admissionBypassSuffixes</dt>
+ * <dd>同時実行数を制限しない静的なファイルの拡張子を","区切りで指定します。
+ * デフォルトは.css,.js,.png,.gif,.jpg,.jpeg,.ico,.svg,.woff,.woff2です。</dd>
+ * <dt>prefetchThreads</dt>
+ * <dd>PrefetchableModel（S2LoadableModelを含む）の先読みを行うスレッドの数を指定します。
+ * 指定しなければ先読みは行わず、表示時に読み込みます。</dd>
+ * <dt>prefetchQueueSize</dt>
+ * <dd>先読みを待つキューの大きさを指定します。一杯の場合は表示時に読み込みます。デフォルトはスレッド数の4倍です。</dd>
+ * <dt>prefetchTimeout</dt>
+ * <dd>表示時に先読みの完了を待つ最大の時間をミリ秒で指定します。デフォルトは5000です。</dd>
+ * <dt>responseCompression</dt>
+ * <dd>テキストのレスポンスを、Accept-Encodingに応じてgzipまたはdeflateで圧縮するかどうかを指定します。
+ * Ajaxのリクエストと、既にContent-Encodingが設定されているレスポンスは圧縮しません。デフォルトはfalseです。</dd>
+ * <dt>compressionThreshold</dt>
+ * <dd>圧縮する本文の最小のバイト数を指定します。デフォルトは1024です。</dd>
+ * <dt>responseETag</dt>
+ * <dd>キャッシュ可能なレスポンス（GETで状態が200、Cache-Controlにno-storeがないもの）に本文からETagを付け、
+ * If-None-Matchに一致する場合は本文を送らずに304を返すかどうかを指定します。デフォルトはfalseです。</dd>
+ * <dt>maxETagBytes</dt>
+ * <dd>ETagを計算するために保持する本文の最大のバイト数を指定します。これを超える本文はETagを付けずに送信します。
+ * デフォルトは262144です。</dd>
  * <dl>
  * <h4>web.xml例</h4>
  * 
@@ -140,6 +244,13 @@ public class S2WicketFilter extends ReloadingWicketFilter {
     /** ReloadingClassLoaderを使用するかどうか */
     private boolean useReloadingClassLoader;
 
+    /** WatchServiceで変更を検知する場合のクラスローダ */
+    private volatile ReloadingClassLoader watchedClassLoader;
+    /** クラスファイルの変更の監視 */
+    private ClassChangeWatcher classChangeWatcher;
+    /** 変更の検知によるリロード中かどうか */
+    private volatile boolean reloading;
+
     /** アプリケーションのコンフィグ(DEPLOYMENT, DEVELOPMENT) */
     private RuntimeConfigurationType applicationConfigType;
     /** アプリケーションのデフォルトエンコーディング */
@@ -151,11 +262,55 @@ public class S2WicketFilter extends ReloadingWicketFilter {
      */
     private boolean preventSessionInvalidationInDevMode = false;
 
+    /** S2Containerの初期化をWicketの初期化と並行して行うかどうか */
+    private boolean parallelInit;
+
+    /** 共有のS2Containerのdiconファイルのパス */
+    private String sharedConfigPath;
+    /** SingletonS2ContainerFactoryにも設定するかどうか */
+    private boolean singletonContainer = true;
+    /** S2ContainerRegistryに登録したキー（コンテキストパスとフィルタ名） */
+    private String applicationKey;
+    /** 取得した共有のS2Containerのパス */
+    private String acquiredSharedConfigPath;
+    /** アプリケーションのS2Container */
+    private volatile S2Container applicationContainer;
+
+    /** 起動時の各フェーズの所要時間 */
+    private StartupTimeline startupTimeline;
+
+    /** ページのステートレス診断 */
+    private StatelessDiagnostics statelessDiagnostics;
+
+    /** ページストアの集計 */
+    private PageStoreAccounting pageStoreAccounting;
+
+    /** 準備ができているかどうかを返すURLパス */
+    private String readinessPath;
+    /** 起動時のページの表示が終わっているかどうか */
+    private volatile boolean ready = true;
+    /** 起動時のページの表示に失敗したかどうか */
+    private volatile boolean warmupFailed;
+
+    /** ログに出力するリクエストの処理時間の閾値（ミリ秒）。負の場合は記録しない */
+    private long slowRequestThreshold = -1;
+
+    /** 同時実行数の制限 */
+    private AdmissionController admissionController;
+
+    /** モデルの先読み */
+    private ModelPrefetcher modelPrefetcher;
+
+    /** レスポンスの圧縮とETag */
+    private ResponseOptimizer responseOptimizer;
+
     @Override
     public void init(final boolean isServlet, FilterConfig filterConfig)
             throws ServletException {
+        boolean initialized = false;
         try {
             initInternal(isServlet, filterConfig);
+            initialized = true;
         } catch (RuntimeException e) {
             logger.error("[init] error on initializing filter.", e);
             throw e;
@@ -165,13 +320,30 @@ public class S2WicketFilter extends ReloadingWicketFilter {
         } catch (ServletException e) {
             logger.error("[init] error on initializing filter.", e);
             throw e;
+        } finally {
+            StartupTimeline.setCurrent(null);
+            if (!initialized) {
+                // 失敗した場合はdestroy()が呼ばれないため、共有のS2Containerの参照などをここで解放する
+                try {
+                    destroy();
+                } catch (RuntimeException e) {
+                    logger.warn("[init] error on cleaning up after failure.", e);
+                }
+            }
         }
     }
 
     private void initInternal(final boolean isServlet, FilterConfig filterConfig)
             throws ServletException {
+        final StartupTimeline timeline = new StartupTimeline();
+        StartupTimeline.setCurrent(timeline);
+
         // 再読み込み時にアプリケーションが確実に破棄されているようにする
+        long phase = System.nanoTime();
         destroy();
+        timeline.record("destroy", phase);
+
+        phase = System.nanoTime();
 
         // コンフィギュレーションの読み取り
         configuration =
@@ -182,6 +354,38 @@ public class S2WicketFilter extends ReloadingWicketFilter {
                 getInitParameter(filterConfig, "reloadingClassPattern", null);
         preventSessionInvalidationInDevMode = 
                 Boolean.valueOf(getInitParameter(filterConfig, PREVENT_SESSION_INVALIDATION_IN_DEV_MODE, "false"));
+        parallelInit =
+                Boolean.valueOf(getInitParameter(filterConfig, "parallelInit", "false"));
+        sharedConfigPath = getInitParameter(filterConfig, "sharedConfigPath", null);
+        singletonContainer =
+                Boolean.valueOf(getInitParameter(filterConfig, "singletonContainer", "true"));
+        boolean diagnostics =
+                Boolean.valueOf(getInitParameter(filterConfig, "statelessDiagnostics", "false"));
+        long maxPageStoreBytesPerSession =
+                Long.parseLong(getInitParameter(filterConfig, "maxPageStoreBytesPerSession", "0"));
+        boolean accounting =
+                Boolean.valueOf(getInitParameter(filterConfig, "pageStoreAccounting", "false"))
+                        || maxPageStoreBytesPerSession > 0;
+        long pageCacheMaxBytes =
+                Long.parseLong(getInitParameter(filterConfig, "pageCacheMaxBytes", "0"));
+        String warmupPages = getInitParameter(filterConfig, "warmupPages", null);
+        int warmupIterations =
+                Integer.parseInt(getInitParameter(filterConfig, "warmupIterations", "1"));
+        readinessPath = getInitParameter(filterConfig, "readinessPath", null);
+        slowRequestThreshold =
+                Long.parseLong(getInitParameter(filterConfig, "slowRequestThreshold", "-1"));
+        int maxConcurrentPages =
+                Integer.parseInt(getInitParameter(filterConfig, "maxConcurrentPages", "0"));
+        int maxConcurrentAjax =
+                Integer.parseInt(getInitParameter(filterConfig, "maxConcurrentAjax", "0"));
+        int maxConcurrentResources =
+                Integer.parseInt(getInitParameter(filterConfig, "maxConcurrentResources", "0"));
+        int prefetchThreads =
+                Integer.parseInt(getInitParameter(filterConfig, "prefetchThreads", "0"));
+        boolean responseCompression =
+                Boolean.valueOf(getInitParameter(filterConfig, "responseCompression", "false"));
+        boolean responseETag =
+                Boolean.valueOf(getInitParameter(filterConfig, "responseETag", "false"));
         useReloadingClassLoader =
                 RuntimeConfigurationType.DEVELOPMENT.name().equalsIgnoreCase(
                         configuration)
@@ -194,8 +398,41 @@ public class S2WicketFilter extends ReloadingWicketFilter {
             logger.info("[config] reloadingClassPattern='{}'",
                     reloadingClassPattern);
             logger.info("[config] preventSessionInvalidationInDevMode='{}'", preventSessionInvalidationInDevMode);
+            logger.info("[config] parallelInit='{}'", parallelInit);
+            logger.info("[config] sharedConfigPath='{}'", sharedConfigPath);
+            logger.info("[config] singletonContainer='{}'", singletonContainer);
+            logger.info("[config] statelessDiagnostics='{}'", diagnostics);
+            logger.info("[config] pageStoreAccounting='{}'", accounting);
+            logger.info("[config] maxPageStoreBytesPerSession='{}'", maxPageStoreBytesPerSession);
+            logger.info("[config] pageCacheMaxBytes='{}'", pageCacheMaxBytes);
+            logger.info("[config] warmupPages='{}'", warmupPages);
+            logger.info("[config] warmupIterations='{}'", warmupIterations);
+            logger.info("[config] readinessPath='{}'", readinessPath);
+            logger.info("[config] slowRequestThreshold='{}'", slowRequestThreshold);
+            logger.info("[config] maxConcurrentPages='{}'", maxConcurrentPages);
+            logger.info("[config] maxConcurrentAjax='{}'", maxConcurrentAjax);
+            logger.info("[config] maxConcurrentResources='{}'", maxConcurrentResources);
+            logger.info("[config] prefetchThreads='{}'", prefetchThreads);
+            logger.info("[config] responseCompression='{}'", responseCompression);
+            logger.info("[config] responseETag='{}'", responseETag);
         }
 
+        if (responseCompression || responseETag) {
+            ResponseOptimizer optimizer = new ResponseOptimizer();
+            optimizer.setCompression(responseCompression);
+            optimizer.setCompressionThreshold(Integer.parseInt(getInitParameter(
+                    filterConfig, "compressionThreshold", "1024")));
+            optimizer.setETag(responseETag);
+            optimizer.setMaxETagBytes(Integer.parseInt(getInitParameter(
+                    filterConfig, "maxETagBytes", "262144")));
+            responseOptimizer = optimizer;
+        }
+
+        boolean useWatchService =
+                Boolean.valueOf(getInitParameter(filterConfig, "reloadingWatchService", "true"));
+        long reloadingQuietPeriod =
+                Long.parseLong(getInitParameter(filterConfig, "reloadingQuietPeriod", "300"));
+
         if (RuntimeConfigurationType.DEVELOPMENT == RuntimeConfigurationType.valueOf(configuration)
                 && reloadingClassPattern != null) {
             ReloadingClassLoader.getPatterns().clear();
@@ -214,27 +451,90 @@ public class S2WicketFilter extends ReloadingWicketFilter {
             for (String str : ReloadingClassLoader.getPatterns()) {
                 logger.info("[pattern] {}", str);
             }
+            if (useWatchService && classChangeWatcher == null) {
+                startClassChangeWatcher(isServlet, filterConfig, reloadingQuietPeriod);
+            }
         }
 
+        if (maxConcurrentPages > 0 || maxConcurrentAjax > 0
+                || maxConcurrentResources > 0) {
+            AdmissionController controller =
+                    new AdmissionController(maxConcurrentAjax,
+                            maxConcurrentPages, maxConcurrentResources);
+            controller.setQueueSize(Integer.parseInt(getInitParameter(
+                    filterConfig, "admissionQueueSize", "0")));
+            controller.setMaxWait(Long.parseLong(getInitParameter(
+                    filterConfig, "admissionMaxWait", "1000")));
+            controller.setBypassSuffixes(getInitParameter(filterConfig,
+                    "admissionBypassSuffixes",
+                    ".css,.js,.png,.gif,.jpg,.jpeg,.ico,.svg,.woff,.woff2"));
+            controller.register(filterConfig.getFilterName());
+            admissionController = controller;
+        }
+
+        timeline.record("config", phase);
+
+        phase = System.nanoTime();
         ComponentDeployerFactory.setProvider(new ExternalComponentDeployerProvider());
-        S2Container s2container =
+        final S2Container s2container =
                 S2ContainerFactory.create(configPath, getClassLoader());
         s2container.setExternalContext(new HttpServletExternalContext());
         s2container.setExternalContextComponentDefRegister(new HttpServletExternalContextComponentDefRegister());
         s2container.getExternalContext().setApplication(
                 filterConfig.getServletContext());
-        s2container.init();
-        SingletonS2ContainerFactory.setContainer(s2container);
+        if (sharedConfigPath != null) {
+            S2Container sharedContainer =
+                    S2ContainerRegistry.acquireSharedContainer(sharedConfigPath);
+            acquiredSharedConfigPath = sharedConfigPath;
+            s2container.include(sharedContainer);
+        }
+        timeline.record("s2container.create", phase);
 
-        if (SmartDeployUtil.isHotdeployMode(SingletonS2ContainerFactory.getContainer())) {
+        if (SmartDeployUtil.isHotdeployMode(s2container)) {
             throw new ServletException(
                     "S2Wicket does not support HOT deploy mode.");
         }
 
+        FutureTask<Void> containerInit = new FutureTask<Void>(new Runnable() {
+            public void run() {
+                long start = System.nanoTime();
+                StartupTimeline outer = StartupTimeline.current();
+                StartupTimeline.setCurrent(timeline);
+                try {
+                    s2container.init();
+                } finally {
+                    StartupTimeline.setCurrent(outer);
+                }
+                timeline.record("s2container.init", start);
+            }
+        }, null);
+        if (parallelInit) {
+            // 初期化前でもコンポーネントは要求時に生成されるため、先に公開しておく
+            publishContainer(filterConfig, s2container);
+            Thread thread = new Thread(containerInit, "s2wicket-init");
+            thread.setContextClassLoader(Thread.currentThread().getContextClassLoader());
+            thread.setDaemon(true);
+            thread.start();
+        } else {
+            containerInit.run();
+            awaitContainerInit(containerInit);
+            publishContainer(filterConfig, s2container);
+        }
+
         // ApplicationならびにgetHomePage()で設定しているクラスがデフォルトの
         // クラスローダで読み込まれてしまうため正しく設定
 
+        phase = System.nanoTime();
         super.init(isServlet, filterConfig);
+        timeline.record("wicket.init", phase);
+
+        if (parallelInit) {
+            phase = System.nanoTime();
+            awaitContainerInit(containerInit);
+            timeline.record("s2container.await", phase);
+        }
+
+        phase = System.nanoTime();
 
         // 関連づけられたWebApplicationを取り出す（現状これしか方法がない？）
         WebApplication webApplication =
@@ -253,35 +553,285 @@ public class S2WicketFilter extends ReloadingWicketFilter {
                 webApplication.mountPage(debug, S2DebugPage.class);
             }
         }
+        if (diagnostics) {
+            statelessDiagnostics = new StatelessDiagnostics();
+            webApplication.getRequestCycleListeners().add(statelessDiagnostics);
+            webApplication.getFrameworkSettings().setSerializer(
+                    new DiagnosticSerializer(
+                            webApplication.getFrameworkSettings().getSerializer(),
+                            statelessDiagnostics));
+            statelessDiagnostics.register(filterConfig.getFilterName());
+        }
+        if (accounting) {
+            pageStoreAccounting = new PageStoreAccounting();
+            pageStoreAccounting.setMaxBytesPerSession(maxPageStoreBytesPerSession);
+            webApplication.getFrameworkSettings().setSerializer(
+                    new AccountingSerializer(
+                            webApplication.getFrameworkSettings().getSerializer(),
+                            pageStoreAccounting));
+            pageStoreAccounting.register(filterConfig.getFilterName());
+        }
+        if (accounting || pageCacheMaxBytes > 0) {
+            S2PageManagerProvider pageManagerProvider =
+                    new S2PageManagerProvider(webApplication, pageStoreAccounting);
+            pageManagerProvider.setPageCache(pageCacheMaxBytes,
+                    Long.parseLong(getInitParameter(filterConfig,
+                            "pageCacheMaxBytesPerSession",
+                            String.valueOf(pageCacheMaxBytes / 8))),
+                    Integer.parseInt(getInitParameter(filterConfig,
+                            "pageCacheSegments", "16")));
+            webApplication.setPageManagerProvider(pageManagerProvider);
+        }
+        if (slowRequestThreshold >= 0) {
+            webApplication.getFrameworkSettings().setSerializer(
+                    new TracingSerializer(
+                            webApplication.getFrameworkSettings().getSerializer()));
+        }
+        if (prefetchThreads > 0) {
+            modelPrefetcher =
+                    new ModelPrefetcher(prefetchThreads,
+                            Integer.parseInt(getInitParameter(filterConfig,
+                                    "prefetchQueueSize",
+                                    String.valueOf(prefetchThreads * 4))),
+                            Long.parseLong(getInitParameter(filterConfig,
+                                    "prefetchTimeout", "5000")));
+            modelPrefetcher.register(webApplication);
+        }
+        timeline.record("wicket.settings", phase);
+
+        timeline.finish();
+        timeline.register(filterConfig.getFilterName());
+        startupTimeline = timeline;
+        if (logger.isInfoEnabled()) {
+            logger.info("[startup] {}", timeline.getReport());
+        }
+
+        if (warmupPages != null && warmupIterations > 0) {
+            startWarmup(webApplication, WarmupRunner.resolvePaths(warmupPages,
+                    s2container, webApplication), warmupIterations);
+        }
+    }
+
+    /*
+     * 別スレッドでページを表示し、終わるまでreadinessPathに503を返すようにします。
+     * 失敗した場合は、その後も503を返します。
+     */
+    private void startWarmup(WebApplication webApplication,
+            List<String> paths, int iterations) {
+        ready = false;
+        warmupFailed = false;
+        Thread thread = new Thread(new WarmupRunner(this, getFilterPath(),
+                webApplication, paths, iterations, new WarmupRunner.Callback() {
+                    public void finished(boolean succeeded) {
+                        if (succeeded) {
+                            ready = true;
+                            logger.info("[warmup] ready.");
+                        } else {
+                            warmupFailed = true;
+                            logger.error("[warmup] failed; readiness stays unavailable.");
+                        }
+                    }
+                }), "s2wicket-warmup");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /*
+     * アプリケーションのS2ContainerをS2ContainerRegistryに登録し、設定に応じてSingletonS2ContainerFactoryにも設定します。
+     * WebApplicationのアプリケーションキーはフィルタ名で、それをコンテキストパスで修飾して登録します。
+     */
+    private void publishContainer(FilterConfig filterConfig,
+            S2Container s2container) {
+        applicationKey =
+                S2ContainerRegistry.toApplicationKey(
+                        filterConfig.getServletContext(),
+                        filterConfig.getFilterName());
+        applicationContainer = s2container;
+        S2ContainerRegistry.register(applicationKey, s2container);
+        if (singletonContainer) {
+            SingletonS2ContainerFactory.setContainer(s2container);
+        }
+    }
+
+    /*
+     * 別スレッドで行っているS2Containerの初期化の完了を待ち、例外が発生していればそのまま投げ直します。
+     */
+    private void awaitContainerInit(FutureTask<Void> containerInit)
+            throws ServletException {
+        try {
+            containerInit.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ServletException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new ServletException(cause);
+        }
+    }
+
+    /*
+     * WatchServiceによる変更の監視を開始し、定期的に確認するReloadingClassLoaderの代わりに使用します。
+     */
+    private void startClassChangeWatcher(final boolean isServlet,
+            final FilterConfig filterConfig, long quietPeriod) {
+        classChangeWatcher =
+                ClassChangeWatcher.newInstance(ReloadingClassLoader.getLocations(),
+                        ReloadingClassLoader.getPatterns(), quietPeriod,
+                        new Runnable() {
+                            public void run() {
+                                reload(isServlet, filterConfig);
+                            }
+                        });
+        if (classChangeWatcher == null) {
+            logger.info("[reload] WatchService is not available, use polling.");
+            return;
+        }
+        // ReloadingWicketFilterのクラスローダによる定期的な確認を止める
+        ((ReloadingClassLoader) super.getClassLoader()).destroy();
+        watchedClassLoader = newWatchedClassLoader();
+        classChangeWatcher.start();
+    }
+
+    /*
+     * クラスローダを作り直し、アプリケーションとS2Containerを初期化し直します。
+     */
+    private synchronized void reload(boolean isServlet, FilterConfig filterConfig) {
+        logger.info("[reload] class change detected, reloading ...");
+        long start = System.currentTimeMillis();
+        reloading = true;
+        try {
+            watchedClassLoader = newWatchedClassLoader();
+            init(isServlet, filterConfig);
+            logger.info("[reload] reloaded in {}ms", System.currentTimeMillis() - start);
+        } catch (ServletException e) {
+            logger.error("[reload] error on reloading.", e);
+        } finally {
+            reloading = false;
+        }
+    }
+
+    private ReloadingClassLoader newWatchedClassLoader() {
+        ReloadingClassLoader classLoader =
+                new ReloadingClassLoader(S2WicketFilter.class.getClassLoader());
+        // 変更はWatchServiceで検知するため、クラスファイルの定期的な確認は行わない
+        classLoader.destroy();
+        return classLoader;
     }
 
     @Override
     public void destroy() {
-        if (SingletonS2ContainerFactory.hasContainer()) {
+        if (classChangeWatcher != null && !reloading) {
+            classChangeWatcher.stop();
+            classChangeWatcher = null;
+            watchedClassLoader = null;
+        }
+        if (startupTimeline != null) {
+            startupTimeline.unregister();
+            startupTimeline = null;
+        }
+        if (statelessDiagnostics != null) {
+            statelessDiagnostics.unregister();
+            statelessDiagnostics = null;
+        }
+        if (pageStoreAccounting != null) {
+            pageStoreAccounting.unregister();
+            pageStoreAccounting = null;
+        }
+        if (admissionController != null) {
+            admissionController.unregister();
+            admissionController = null;
+        }
+        if (modelPrefetcher != null) {
+            modelPrefetcher.shutdown();
+            modelPrefetcher = null;
+        }
+        S2Container s2container = applicationContainer;
+        if (s2container != null) {
+            S2ContainerRegistry.unregister(applicationKey);
+            applicationContainer = null;
+            s2container.destroy();
+        }
+        if (singletonContainer && SingletonS2ContainerFactory.hasContainer()) {
             SingletonS2ContainerFactory.destroy();
         }
+        if (acquiredSharedConfigPath != null) {
+            S2ContainerRegistry.releaseSharedContainer(acquiredSharedConfigPath);
+            acquiredSharedConfigPath = null;
+        }
         super.destroy();
     }
 
     @Override
     protected ClassLoader getClassLoader() {
         if (useReloadingClassLoader) {
-            return super.getClassLoader();
+            ReloadingClassLoader classLoader = watchedClassLoader;
+            return classLoader != null ? classLoader : super.getClassLoader();
         } else {
             return Thread.currentThread().getContextClassLoader();
         }
     }
     
-    @SuppressWarnings("unchecked")
     @Override
     public void doFilter(ServletRequest request, ServletResponse response,
             FilterChain chain) throws IOException, ServletException {
 
+        if (readinessPath != null && isReadinessRequest(request)) {
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setContentType("text/plain");
+            if (ready) {
+                httpResponse.setStatus(HttpServletResponse.SC_OK);
+                httpResponse.getWriter().write("ready");
+            } else if (warmupFailed) {
+                httpResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                httpResponse.getWriter().write("warmup failed");
+            } else {
+                httpResponse.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                httpResponse.setHeader("Retry-After", "1");
+                httpResponse.getWriter().write("warming up");
+            }
+            return;
+        }
+
+        AdmissionController controller = admissionController;
+        AdmissionController.Lane lane =
+                controller != null && request instanceof HttpServletRequest
+                        ? controller.getLane((HttpServletRequest) request)
+                        : null;
+        if (lane == null) {
+            doFilterInternal(request, response, chain);
+            return;
+        }
+        if (!lane.acquire()) {
+            // 処理を始める前に断る
+            HttpServletResponse httpResponse = (HttpServletResponse) response;
+            httpResponse.setHeader("Retry-After", "1");
+            httpResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            return;
+        }
+        try {
+            doFilterInternal(request, response, chain);
+        } finally {
+            lane.release();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void doFilterInternal(ServletRequest request,
+            ServletResponse response, FilterChain chain) throws IOException,
+            ServletException {
         if (RuntimeConfigurationType.DEVELOPMENT == applicationConfigType && !preventSessionInvalidationInDevMode) {
+            // ステートレスなページのためにセッションを作らないよう、既存のセッションのみ確認する
+            HttpSession session = null;
             if (request instanceof HttpServletRequest) {
+                session = ((HttpServletRequest) request).getSession(false);
+            }
+            if (session != null) {
                 // 旧セッションクラスローダーで読み込まれていたセッションオブジェクトの削除
-                HttpSession session =
-                        ((HttpServletRequest) request).getSession();
                 ClassLoader previousLoader =
                         (ClassLoader) session.getAttribute(SESSION_LOADER);
                 if (previousLoader != getClassLoader()) {
@@ -308,7 +858,10 @@ public class S2WicketFilter extends ReloadingWicketFilter {
         }
 
         // S2ContainerFilterの処理と同じ
-        S2Container container = SingletonS2ContainerFactory.getContainer();
+        S2Container container = applicationContainer;
+        if (container == null) {
+            container = SingletonS2ContainerFactory.getContainer();
+        }
         ExternalContext externalContext = container.getExternalContext();
         if (externalContext == null) {
             throw new EmptyRuntimeException("externalContext");
@@ -318,16 +871,90 @@ public class S2WicketFilter extends ReloadingWicketFilter {
                 Thread.currentThread().getContextClassLoader();
         final Object originalRequest = externalContext.getRequest();
         final Object originalResponse = externalContext.getResponse();
+        final RequestTrace trace =
+                slowRequestThreshold >= 0 ? RequestTrace.begin() : null;
+        OptimizedResponse optimized = null;
+        if (responseOptimizer != null && request instanceof HttpServletRequest
+                && response instanceof HttpServletResponse) {
+            optimized =
+                    responseOptimizer.wrap((HttpServletRequest) request,
+                            (HttpServletResponse) response);
+            if (optimized != null) {
+                response = optimized;
+            }
+        }
         try {
             Thread.currentThread().setContextClassLoader(getClassLoader());
             externalContext.setRequest(request);
             externalContext.setResponse(response);
             super.doFilter(request, response, chain);
+            if (optimized != null) {
+                optimized.finish();
+            }
         } finally {
+            if (optimized != null) {
+                // finish()が完了していれば何もしない
+                optimized.abort();
+            }
             externalContext.setRequest(originalRequest);
             externalContext.setResponse(originalResponse);
             Thread.currentThread().setContextClassLoader(originalClassLoader);
+            markSessionLoader(request);
             invalidateSession(request);
+            if (trace != null) {
+                trace.end(describe(request), slowRequestThreshold);
+            }
+        }
+    }
+
+    /*
+     * 遅いリクエストのログに出力するリクエストの説明を返します。
+     */
+    private static String describe(final ServletRequest request) {
+        if (!(request instanceof HttpServletRequest)) {
+            return String.valueOf(request);
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String query = httpRequest.getQueryString();
+        return httpRequest.getMethod() + " " + httpRequest.getRequestURI()
+                + (query != null ? "?" + query : "");
+    }
+
+    /*
+     * readinessPathへのリクエストかどうかを判定します。
+     */
+    private boolean isReadinessRequest(final ServletRequest request) {
+        if (!(request instanceof HttpServletRequest)) {
+            return false;
+        }
+        HttpServletRequest httpRequest = (HttpServletRequest) request;
+        String uri = httpRequest.getRequestURI();
+        String contextPath = httpRequest.getContextPath();
+        if (contextPath != null && uri.startsWith(contextPath)) {
+            uri = uri.substring(contextPath.length());
+        }
+        return readinessPath.equals(uri);
+    }
+
+    /*
+     * DEVELOPMENTモード時に、リクエスト中に作られたセッションにクラスローダを記録します。
+     */
+    private void markSessionLoader(final ServletRequest request) {
+        if (RuntimeConfigurationType.DEVELOPMENT != applicationConfigType
+                || preventSessionInvalidationInDevMode
+                || !(request instanceof HttpServletRequest)) {
+            return;
+        }
+        HttpSession session = ((HttpServletRequest) request).getSession(false);
+        if (session == null) {
+            return;
+        }
+        try {
+            if (session.getAttribute(SESSION_LOADER) == null) {
+                session.setAttribute(SESSION_LOADER, getClassLoader());
+            }
+        } catch (IllegalStateException ignore) {
+            // リクエスト中に無効化されたセッション
         }
     }
 
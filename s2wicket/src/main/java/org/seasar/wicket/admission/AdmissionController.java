@@ -0,0 +1,239 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.admission;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+import javax.servlet.http.HttpServletRequest;
+
+import org.seasar.wicket.util.JmxUtil;
+
+/**
+ * Wicketで処理するリクエストの同時実行数を制限するクラス。
+ * <p>
+ * リクエストをAjax、ページ、リソースの種類に分け、種類ごとに同時に処理する数の上限を設けます。
+ * 上限に達している場合は、待っているリクエストの数がキューの大きさ以内であれば最大待ち時間まで待ち、
+ * それを超える場合や待ち時間を過ぎた場合は受け付けません（S2WicketFilterは503を返します）。
+ * 過負荷の時にスレッドやDBのコネクションを使い果たして全体の応答が遅くなる代わりに、
+ * 一部のリクエストを早く断ります。
+ * </p>
+ * <p>
+ * 静的なファイル（拡張子で判定）へのリクエストは制限しません。
+ * S2WicketFilterの初期化パラメータmaxConcurrentPages、maxConcurrentAjax、maxConcurrentResources
+ * のいずれかを指定すると有効になり、
+ * JMXに「org.seasar.wicket:type=AdmissionController,name=フィルタ名」として登録されます。
+ * </p>
+ */
+public class AdmissionController implements AdmissionControllerMBean {
+    private final Lane ajax;
+    private final Lane page;
+    private final Lane resource;
+
+    private volatile String[] bypassSuffixes = new String[0];
+    private volatile long maxWait;
+    private volatile int queueSize;
+
+    private ObjectName objectName;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param maxAjax
+     *            Ajaxリクエストの同時実行数の上限。0以下の場合は制限しない
+     * @param maxPages
+     *            ページのリクエストの同時実行数の上限。0以下の場合は制限しない
+     * @param maxResources
+     *            リソースのリクエストの同時実行数の上限。0以下の場合は制限しない
+     */
+    public AdmissionController(int maxAjax, int maxPages, int maxResources) {
+        ajax = maxAjax > 0 ? new Lane("ajax", maxAjax) : null;
+        page = maxPages > 0 ? new Lane("page", maxPages) : null;
+        resource = maxResources > 0 ? new Lane("resource", maxResources) : null;
+    }
+
+    /**
+     * リクエストの種類を判定します。
+     *
+     * @return リクエストの種類。制限しないリクエストの場合はnull
+     */
+    public Lane getLane(HttpServletRequest request) {
+        String uri = request.getRequestURI();
+        for (String suffix : bypassSuffixes) {
+            if (uri.endsWith(suffix)) {
+                return null;
+            }
+        }
+        // パラメータを読むとリクエストのエンコーディングが決まってしまうため、ヘッダのみで判定する
+        if ("true".equals(request.getHeader("Wicket-Ajax"))) {
+            return ajax;
+        }
+        if (uri.indexOf("/wicket/resource/") >= 0) {
+            return resource;
+        }
+        return page;
+    }
+
+    /**
+     * 制限しない拡張子を","区切りで設定します。
+     */
+    public void setBypassSuffixes(String bypassSuffixes) {
+        List<String> list = new ArrayList<String>();
+        for (String suffix : bypassSuffixes.split(",")) {
+            suffix = suffix.trim();
+            if (suffix.length() > 0) {
+                list.add(suffix);
+            }
+        }
+        this.bypassSuffixes = list.toArray(new String[list.size()]);
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    /**
+     * 上限に達している場合に待つ最大の時間をミリ秒で設定します。
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public int getQueueSize() {
+        return queueSize;
+    }
+
+    /**
+     * 上限に達している場合に、種類ごとに待つことのできるリクエストの数を設定します。
+     */
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public String[] getLanes() {
+        List<String> result = new ArrayList<String>();
+        for (Lane lane : new Lane[] { ajax, page, resource }) {
+            if (lane != null) {
+                result.add(lane.toString());
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public int getWaiting() {
+        int waiting = 0;
+        for (Lane lane : new Lane[] { ajax, page, resource }) {
+            if (lane != null) {
+                waiting += lane.waiting.get();
+            }
+        }
+        return waiting;
+    }
+
+    public long getRejected() {
+        long rejected = 0;
+        for (Lane lane : new Lane[] { ajax, page, resource }) {
+            if (lane != null) {
+                rejected += lane.rejected.get();
+            }
+        }
+        return rejected;
+    }
+
+    /**
+     * MBeanServerに登録します。
+     */
+    public void register(String name) {
+        objectName = JmxUtil.register(this, "AdmissionController", name);
+    }
+
+    /**
+     * MBeanServerから登録を解除します。
+     */
+    public void unregister() {
+        JmxUtil.unregister(objectName);
+        objectName = null;
+    }
+
+    /**
+     * 同時実行数を制限するリクエストの種類。
+     */
+    public final class Lane {
+        private final String name;
+        private final int limit;
+        private final Semaphore permits;
+        private final AtomicInteger waiting = new AtomicInteger();
+        private final AtomicLong admitted = new AtomicLong();
+        private final AtomicLong queued = new AtomicLong();
+        private final AtomicLong rejected = new AtomicLong();
+
+        Lane(String name, int limit) {
+            this.name = name;
+            this.limit = limit;
+            this.permits = new Semaphore(limit);
+        }
+
+        /**
+         * 処理を始めてよいかどうかを判定します。trueを返した場合は必ず{@link #release()}を呼び出してください。
+         *
+         * @return 受け付ける場合はtrue。キューが一杯か、待ち時間を過ぎた場合はfalse
+         */
+        public boolean acquire() {
+            if (permits.tryAcquire()) {
+                admitted.incrementAndGet();
+                return true;
+            }
+            if (waiting.incrementAndGet() > queueSize) {
+                waiting.decrementAndGet();
+                rejected.incrementAndGet();
+                return false;
+            }
+            queued.incrementAndGet();
+            try {
+                if (permits.tryAcquire(maxWait, TimeUnit.MILLISECONDS)) {
+                    admitted.incrementAndGet();
+                    return true;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                waiting.decrementAndGet();
+            }
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        /**
+         * 処理の終了を記録します。
+         */
+        public void release() {
+            permits.release();
+        }
+
+        @Override
+        public String toString() {
+            return name + ": inFlight=" + (limit - permits.availablePermits())
+                    + "/" + limit + ", waiting=" + waiting.get()
+                    + ", admitted=" + admitted.get() + ", queued="
+                    + queued.get() + ", rejected=" + rejected.get();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.admission;
+
+/**
+ * {@link AdmissionController}をJMXで公開するためのインタフェース。
+ */
+public interface AdmissionControllerMBean {
+    /**
+     * リクエストの種類ごとの処理中、待機中、受け付けた数、待った数、断った数を返します。
+     */
+    String[] getLanes();
+
+    /**
+     * 待機中のリクエストの数を返します。
+     */
+    int getWaiting();
+
+    /**
+     * 受け付けなかったリクエストの数を返します。
+     */
+    long getRejected();
+
+    long getMaxWait();
+
+    void setMaxWait(long maxWait);
+
+    int getQueueSize();
+
+    void setQueueSize(int queueSize);
+}
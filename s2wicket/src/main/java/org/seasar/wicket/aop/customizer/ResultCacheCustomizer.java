@@ -0,0 +1,127 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.aop.customizer;
+
+import java.lang.reflect.Method;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.customizer.AbstractCustomizer;
+import org.seasar.framework.container.factory.AspectDefFactory;
+import org.seasar.wicket.cache.Cached;
+
+/**
+ * {@link org.seasar.wicket.aop.interceptors.ResultCacheInterceptor}を適用するカスタマイザ。
+ * <p>
+ * {@link Cached}が付いているメソッド、{@link #setPointcut(String)}で指定した正規表現に一致するメソッド、
+ * 書き込みメソッド（デフォルト: insert, update, deleteで始まるメソッド）にのみアスペクトを適用します。
+ * 該当するメソッドがないコンポーネントにはアスペクトを適用しないため、不要なエンハンスは行われません。
+ * </p>
+ * <h4>customizer.dicon例</h4>
+ *
+ * <pre>
+ * &lt;component name=&quot;logicCustomizer&quot; class=&quot;org.seasar.framework.container.customizer.CustomizerChain&quot;&gt;
+ *   &lt;initMethod name=&quot;addCustomizer&quot;&gt;
+ *     &lt;arg&gt;
+ *       &lt;component class=&quot;org.seasar.wicket.aop.customizer.ResultCacheCustomizer&quot;&gt;
+ *         &lt;property name=&quot;interceptorName&quot;&gt;&quot;resultcache.interceptor&quot;&lt;/property&gt;
+ *       &lt;/component&gt;
+ *     &lt;/arg&gt;
+ *   &lt;/initMethod&gt;
+ * &lt;/component&gt;
+ * </pre>
+ */
+public class ResultCacheCustomizer extends AbstractCustomizer {
+    private String interceptorName = "resultcache.interceptor";
+
+    private Pattern pointcut;
+
+    private String[] writeMethodPrefixes = new String[] { "insert", "update",
+            "delete" };
+
+    @Override
+    protected void doCustomize(ComponentDef componentDef) {
+        Class<?> componentClass = componentDef.getComponentClass();
+        if (componentClass == null) {
+            return;
+        }
+        Set<String> methodNames = new LinkedHashSet<String>();
+        for (Method method : componentClass.getMethods()) {
+            if (method.getDeclaringClass() != Object.class && isApplied(method)) {
+                methodNames.add(method.getName());
+            }
+        }
+        if (methodNames.isEmpty()) {
+            return;
+        }
+        StringBuilder pointcutStr = new StringBuilder();
+        for (String methodName : methodNames) {
+            if (pointcutStr.length() > 0) {
+                pointcutStr.append(',');
+            }
+            pointcutStr.append(methodName);
+        }
+        componentDef.addAspectDef(AspectDefFactory.createAspectDef(
+                interceptorName,
+                AspectDefFactory.createPointcut(pointcutStr.toString())));
+    }
+
+    private boolean isApplied(Method method) {
+        String name = method.getName();
+        if (method.isAnnotationPresent(Cached.class)
+                || (pointcut != null && pointcut.matcher(name).matches())) {
+            return true;
+        }
+        for (String prefix : writeMethodPrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public String getInterceptorName() {
+        return interceptorName;
+    }
+
+    /**
+     * 適用するインターセプタのコンポーネント名を設定します。デフォルトはresultcache.interceptorです。
+     */
+    public void setInterceptorName(String interceptorName) {
+        this.interceptorName = interceptorName;
+    }
+
+    /**
+     * {@link Cached}が付いていなくても適用するメソッド名の正規表現を設定します。
+     * インターセプタのcacheMethodPatternにも同じ値を設定してください。
+     */
+    public void setPointcut(String pointcut) {
+        this.pointcut = pointcut != null ? Pattern.compile(pointcut) : null;
+    }
+
+    /**
+     * 書き込みメソッドの接頭辞をカンマ区切りで設定します。
+     */
+    public void setWriteMethodPrefixes(String writeMethodPrefixes) {
+        String[] prefixes = writeMethodPrefixes.split(",");
+        for (int i = 0; i < prefixes.length; ++i) {
+            prefixes[i] = prefixes[i].trim();
+        }
+        this.writeMethodPrefixes = prefixes;
+    }
+}
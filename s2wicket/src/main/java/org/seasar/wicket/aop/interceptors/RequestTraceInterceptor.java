@@ -0,0 +1,45 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.aop.interceptors;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.seasar.framework.aop.interceptors.AbstractInterceptor;
+import org.seasar.wicket.profiling.RequestTrace;
+
+/**
+ * コンポーネントの呼び出しの時間を{@link RequestTrace}に記録するインターセプタ。
+ * <p>
+ * ロジックやDaoのカスタマイザに{@code AspectCustomizer}で追加すると、
+ * 遅いリクエストのログにコンポーネントの呼び出しの時間と、時間のかかったクラスが出力されます。
+ * 記録していないリクエストでは、そのまま呼び出します。
+ * </p>
+ */
+public class RequestTraceInterceptor extends AbstractInterceptor {
+    private static final long serialVersionUID = 1L;
+
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        long start = RequestTrace.enter(RequestTrace.COMPONENT);
+        if (start == RequestTrace.NOT_TRACED) {
+            return invocation.proceed();
+        }
+        try {
+            return invocation.proceed();
+        } finally {
+            RequestTrace.exit(RequestTrace.COMPONENT, start,
+                    getTargetClass(invocation));
+        }
+    }
+}
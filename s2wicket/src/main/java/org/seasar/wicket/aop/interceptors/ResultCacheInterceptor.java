@@ -0,0 +1,262 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.aop.interceptors;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+import javax.transaction.TransactionManager;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.seasar.framework.aop.interceptors.AbstractInterceptor;
+import org.seasar.wicket.cache.Cached;
+import org.seasar.wicket.cache.InvalidationTags;
+import org.seasar.wicket.cache.ResultCache;
+
+/**
+ * 読み込みメソッドの戻り値を{@link ResultCache}にキャッシュし、書き込みメソッドの呼び出しで無効化するインターセプタ。
+ * <p>
+ * 呼び出されたメソッドは以下のように扱われます。
+ * </p>
+ * <dl>
+ * <dt>書き込みメソッド</dt>
+ * <dd>メソッド名が{@link #setWriteMethodPrefixes(String)}で指定した接頭辞（デフォルト: insert, update, delete）
+ * で始まるメソッド。トランザクション中であればトランザクションの終了時に、
+ * そうでなければ呼び出しの前後で、そのコンポーネントのタグを無効化します。</dd>
+ * <dt>キャッシュするメソッド</dt>
+ * <dd>{@link Cached}が付いているか、メソッド名が{@link #setCacheMethodPattern(String)}で指定した正規表現に一致するメソッド。
+ * 引数が等しい呼び出しの戻り値をキャッシュします。</dd>
+ * <dt>それ以外のメソッド</dt>
+ * <dd>そのまま呼び出します。キャッシュする値の読み込み中であれば、その値がこのコンポーネントのタグに依存することを記録します。</dd>
+ * </dl>
+ * <p>
+ * タグはコンポーネントのクラス名です。ただし、S2Daoの{@code @S2Dao(bean = ...)}または{@code BEAN}定数で
+ * エンティティが指定されているDaoでは、エンティティのクラス名になります。
+ * ロジックコンポーネントに{@link org.seasar.wicket.aop.customizer.ResultCacheCustomizer}で、
+ * Daoに{@code AspectCustomizer}ですべてのメソッドに適用すると、Daoへの書き込みで、そのDaoを読み込んだロジックのキャッシュが無効化されます。
+ * </p>
+ * <p>
+ * コミット前の値が新しいバージョンでキャッシュされないよう、{@link TransactionManager}が設定されていれば
+ * トランザクションの終了時（コミットまたはロールバックの後）に無効化します。
+ * j2ee.diconをインクルードしていれば自動的に設定されます。
+ * </p>
+ *
+ * @see org.seasar.wicket.aop.customizer.ResultCacheCustomizer
+ */
+public class ResultCacheInterceptor extends AbstractInterceptor {
+    private static final long serialVersionUID = 1L;
+
+    private ResultCache resultCache;
+
+    private TransactionManager transactionManager;
+
+    private String[] writeMethodPrefixes = new String[] { "insert", "update",
+            "delete" };
+
+    private Pattern cacheMethodPattern;
+
+    private final ConcurrentMap<Class<?>, String> tags =
+            new ConcurrentHashMap<Class<?>, String>();
+
+    public Object invoke(final MethodInvocation invocation) throws Throwable {
+        Method method = invocation.getMethod();
+        String tag = getTag(getTargetClass(invocation));
+        if (isWriteMethod(method)) {
+            Transaction transaction = getActiveTransaction();
+            if (transaction != null) {
+                try {
+                    return invocation.proceed();
+                } finally {
+                    invalidateOnCompletion(transaction, tag);
+                }
+            }
+            InvalidationTags.invalidate(tag);
+            try {
+                return invocation.proceed();
+            } finally {
+                InvalidationTags.invalidate(tag);
+            }
+        }
+        if (!isCacheMethod(method)) {
+            ResultCache.dependOn(tag);
+            return invocation.proceed();
+        }
+        Cached cached = method.getAnnotation(Cached.class);
+        long timeToLive = cached != null ? cached.timeToLive() : -1;
+        return resultCache.get(new Key(tag, method, invocation.getArguments()),
+                tag, timeToLive, new ResultCache.Loader() {
+                    public Object load() throws Throwable {
+                        return invocation.proceed();
+                    }
+                });
+    }
+
+    private Transaction getActiveTransaction() {
+        if (transactionManager == null) {
+            return null;
+        }
+        try {
+            Transaction transaction = transactionManager.getTransaction();
+            if (transaction != null
+                    && transaction.getStatus() == Status.STATUS_ACTIVE) {
+                return transaction;
+            }
+        } catch (SystemException ignore) {
+        }
+        return null;
+    }
+
+    /*
+     * トランザクションの終了後にタグを無効化します。登録できなければすぐに無効化します。
+     */
+    private static void invalidateOnCompletion(Transaction transaction,
+            final String tag) {
+        try {
+            transaction.registerSynchronization(new Synchronization() {
+                public void beforeCompletion() {
+                }
+
+                public void afterCompletion(int status) {
+                    InvalidationTags.invalidate(tag);
+                }
+            });
+        } catch (RollbackException e) {
+            InvalidationTags.invalidate(tag);
+        } catch (SystemException e) {
+            InvalidationTags.invalidate(tag);
+        } catch (IllegalStateException e) {
+            InvalidationTags.invalidate(tag);
+        }
+    }
+
+    /**
+     * 書き込みメソッドかどうかを判定します。
+     */
+    public boolean isWriteMethod(Method method) {
+        String name = method.getName();
+        for (String prefix : writeMethodPrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 戻り値をキャッシュするメソッドかどうかを判定します。
+     */
+    public boolean isCacheMethod(Method method) {
+        if (method.getReturnType() == void.class) {
+            return false;
+        }
+        return method.isAnnotationPresent(Cached.class)
+                || (cacheMethodPattern != null && cacheMethodPattern.matcher(
+                        method.getName()).matches());
+    }
+
+    /**
+     * コンポーネントのクラスから無効化に使用するタグを求めます。
+     */
+    protected String getTag(Class<?> targetClass) {
+        String tag = tags.get(targetClass);
+        if (tag == null) {
+            tag = InvalidationTags.tagOf(targetClass);
+            tags.put(targetClass, tag);
+        }
+        return tag;
+    }
+
+    public ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    public void setResultCache(ResultCache resultCache) {
+        this.resultCache = resultCache;
+    }
+
+    public TransactionManager getTransactionManager() {
+        return transactionManager;
+    }
+
+    /**
+     * 書き込みをトランザクションの終了時に反映するためのトランザクションマネージャを設定します。
+     */
+    public void setTransactionManager(TransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    /**
+     * 書き込みメソッドの接頭辞をカンマ区切りで設定します。
+     */
+    public void setWriteMethodPrefixes(String writeMethodPrefixes) {
+        String[] prefixes = writeMethodPrefixes.split(",");
+        for (int i = 0; i < prefixes.length; ++i) {
+            prefixes[i] = prefixes[i].trim();
+        }
+        this.writeMethodPrefixes = prefixes;
+    }
+
+    /**
+     * {@link Cached}が付いていなくても戻り値をキャッシュするメソッド名の正規表現を設定します。
+     */
+    public void setCacheMethodPattern(String cacheMethodPattern) {
+        this.cacheMethodPattern =
+                cacheMethodPattern != null ? Pattern.compile(cacheMethodPattern)
+                        : null;
+    }
+
+    private static class Key {
+        private final String tag;
+        private final Method method;
+        private final Object[] args;
+        private final int hashCode;
+
+        Key(String tag, Method method, Object[] args) {
+            this.tag = tag;
+            this.method = method;
+            this.args = args != null ? args.clone() : new Object[0];
+            this.hashCode =
+                    (tag.hashCode() * 31 + method.hashCode()) * 31
+                            + Arrays.deepHashCode(this.args);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return tag.equals(other.tag) && method.equals(other.method)
+                    && Arrays.deepEquals(args, other.args);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.aop.interceptors;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+
+import org.aopalliance.intercept.MethodInvocation;
+import org.seasar.framework.aop.interceptors.AbstractInterceptor;
+import org.seasar.wicket.writebehind.WriteBehindQueue;
+
+/**
+ * 書き込みメソッドの呼び出しを{@link WriteBehindQueue}に溜めるインターセプタ。
+ * <p>
+ * メソッド名が{@link #setWriteMethodPrefixes(String)}で指定した接頭辞（デフォルト: insert）
+ * で始まり、引数が1つの（バッチ更新でない）メソッドは、その場では実行されずキューに溜められ、
+ * 後でまとめてバッチで実行されます。戻り値が整数の場合は（更新件数として）1を、booleanの場合はtrueを、
+ * その他のプリミティブ型の場合はその初期値を返します。
+ * それ以外のメソッドは、flushBeforeReadがtrue（デフォルト）の場合、
+ * キューに溜まっている書き込みを実行してから呼び出されるため、書き込んだ内容を直後に読むことができます。
+ * </p>
+ * <p>
+ * S2Daoと組み合わせる場合は、S2DaoInterceptorより前（外側）に適用する必要があります。
+ * </p>
+ * <h4>customizer.dicon例</h4>
+ *
+ * <pre>
+ * &lt;component name=&quot;daoCustomizer&quot; class=&quot;org.seasar.framework.container.customizer.CustomizerChain&quot;&gt;
+ *   &lt;initMethod name=&quot;addCustomizer&quot;&gt;
+ *     &lt;arg&gt;
+ *       &lt;component class=&quot;org.seasar.framework.container.customizer.AspectCustomizer&quot;&gt;
+ *         &lt;property name=&quot;interceptorName&quot;&gt;&quot;writebehind.interceptor&quot;&lt;/property&gt;
+ *         &lt;property name=&quot;pointcut&quot;&gt;&quot;insert, select.*&quot;&lt;/property&gt;
+ *       &lt;/component&gt;
+ *     &lt;/arg&gt;
+ *   &lt;/initMethod&gt;
+ *   &lt;initMethod name=&quot;addCustomizer&quot;&gt;
+ *     &lt;arg&gt;s2DaoCustomizer&lt;/arg&gt;
+ *   &lt;/initMethod&gt;
+ * &lt;/component&gt;
+ * </pre>
+ */
+public class WriteBehindInterceptor extends AbstractInterceptor {
+    private static final long serialVersionUID = 1L;
+
+    private WriteBehindQueue writeBehindQueue;
+
+    private String[] writeMethodPrefixes = new String[] { "insert" };
+
+    private boolean flushBeforeRead = true;
+
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        if (writeBehindQueue.isFlushing()) {
+            return invocation.proceed();
+        }
+        Method method = invocation.getMethod();
+        if (!isWriteMethod(method)) {
+            if (flushBeforeRead) {
+                writeBehindQueue.flush();
+            }
+            return invocation.proceed();
+        }
+        writeBehindQueue.enqueue(invocation.getThis(), method,
+                invocation.getArguments());
+        return getDefaultReturnValue(method.getReturnType());
+    }
+
+    /**
+     * キューに溜める書き込みメソッドかどうかを判定します。
+     */
+    protected boolean isWriteMethod(Method method) {
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        if (parameterTypes.length != 1
+                || parameterTypes[0].isArray()
+                || Collection.class.isAssignableFrom(parameterTypes[0])) {
+            return false;
+        }
+        String name = method.getName();
+        for (String prefix : writeMethodPrefixes) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Object getDefaultReturnValue(Class<?> returnType) {
+        if (returnType == int.class || returnType == Integer.class) {
+            return Integer.valueOf(1);
+        } else if (returnType == boolean.class || returnType == Boolean.class) {
+            return Boolean.TRUE;
+        } else if (returnType == long.class || returnType == Long.class) {
+            return Long.valueOf(1L);
+        } else if (returnType == short.class || returnType == Short.class) {
+            return Short.valueOf((short) 1);
+        } else if (returnType == byte.class || returnType == Byte.class) {
+            return Byte.valueOf((byte) 1);
+        } else if (returnType == char.class) {
+            return Character.valueOf('\0');
+        } else if (returnType == float.class) {
+            return Float.valueOf(0f);
+        } else if (returnType == double.class) {
+            return Double.valueOf(0d);
+        }
+        return null;
+    }
+
+    public WriteBehindQueue getWriteBehindQueue() {
+        return writeBehindQueue;
+    }
+
+    public void setWriteBehindQueue(WriteBehindQueue writeBehindQueue) {
+        this.writeBehindQueue = writeBehindQueue;
+    }
+
+    /**
+     * キューに溜める書き込みメソッドの接頭辞をカンマ区切りで設定します。
+     */
+    public void setWriteMethodPrefixes(String writeMethodPrefixes) {
+        String[] prefixes = writeMethodPrefixes.split(",");
+        for (int i = 0; i < prefixes.length; ++i) {
+            prefixes[i] = prefixes[i].trim();
+        }
+        this.writeMethodPrefixes = prefixes;
+    }
+
+    public boolean isFlushBeforeRead() {
+        return flushBeforeRead;
+    }
+
+    /**
+     * 書き込みメソッド以外の呼び出しの前に、キューに溜まっている書き込みを実行するかどうかを設定します。
+     */
+    public void setFlushBeforeRead(boolean flushBeforeRead) {
+        this.flushBeforeRead = flushBeforeRead;
+    }
+}
@@ -0,0 +1,194 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.wicket.markup.ComponentTag;
+import org.apache.wicket.markup.MarkupStream;
+import org.apache.wicket.markup.html.WebMarkupContainer;
+import org.apache.wicket.request.Response;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.response.StringResponse;
+import org.seasar.wicket.S2ContainerRegistry;
+
+/**
+ * 子コンポーネントが表示したマークアップを{@link FragmentCache}で共有するコンテナ。
+ * <p>
+ * 子コンポーネントは{@link #populate()}で追加します。キャッシュにマークアップがあれば、
+ * 子コンポーネントの生成、注入、モデルの読み込みは行わずに、そのマークアップを出力します。
+ * キャッシュのキーは、このクラスと{@link #getCacheKey()}、ロケール、スタイルの組み合わせです。
+ * </p>
+ * <p>
+ * マークアップは、表示中に呼び出されたコンポーネントのタグ（{@link org.seasar.wicket.aop.interceptors.ResultCacheInterceptor}
+ * を適用したロジックやDao）と、{@link #getDependencies()}で指定したタグに依存し、
+ * それらが無効化されると表示し直します。
+ * 子コンポーネントのモデルを{@link org.seasar.wicket.model.PrefetchableModel}で先読みした場合も、
+ * 先読みしたスレッドで記録された依存が、結果を受け取った時に引き継がれます。
+ * </p>
+ * <p>
+ * マークアップは全ユーザで共有されるため、ユーザごとに異なる内容や、リンク、フォーム、Ajaxなどの
+ * リクエストを受け付けるコンポーネントを子に含めないでください。
+ * また、キャッシュから出力した場合は子コンポーネントのヘッダへの出力（renderHead）は行われません。
+ * FragmentCacheはS2Containerに登録しておく必要があります。
+ * </p>
+ *
+ * <pre>
+ * add(new CachingContainer(&quot;messages&quot;) {
+ *     protected Object getCacheKey() {
+ *         return &quot;latest&quot;;
+ *     }
+ *
+ *     protected void populate() {
+ *         add(new ListView&lt;Message&gt;(&quot;list&quot;, new S2ComponentModel&lt;List&lt;Message&gt;&gt;(
+ *                 BoardLogic.class, &quot;getMessages&quot;)) { ... });
+ *     }
+ * });
+ * </pre>
+ */
+public abstract class CachingContainer extends WebMarkupContainer {
+    private static final long serialVersionUID = 1L;
+
+    /** キャッシュから出力するマークアップ */
+    private transient String cachedMarkup;
+    /** 表示中のキャッシュのキー */
+    private transient Object renderingKey;
+    /** 表示中に依存したタグのバージョン */
+    private transient Map<String, Long> renderingVersions;
+
+    public CachingContainer(String id) {
+        super(id);
+    }
+
+    /**
+     * キャッシュのキーを返します。同じキーのコンテナは同じマークアップを共有します。
+     */
+    protected abstract Object getCacheKey();
+
+    /**
+     * 子コンポーネントを追加します。キャッシュにマークアップがない場合にのみ呼び出されます。
+     */
+    protected abstract void populate();
+
+    /**
+     * 自動的に記録されるもの以外に、マークアップが依存するタグを返します。
+     * タグは通常、ロジックのクラス名やDaoのエンティティのクラス名です。
+     */
+    protected String[] getDependencies() {
+        return new String[0];
+    }
+
+    /**
+     * 使用するキャッシュを返します。デフォルトではS2Containerに登録されているFragmentCacheです。
+     */
+    protected FragmentCache getFragmentCache() {
+        return (FragmentCache) S2ContainerRegistry.getContainer().getComponent(
+                FragmentCache.class);
+    }
+
+    @Override
+    protected void onBeforeRender() {
+        Object key =
+                Arrays.asList(getClass().getName(), getCacheKey(), getLocale(),
+                        getStyle());
+        cachedMarkup = getFragmentCache().get(key);
+        if (cachedMarkup != null) {
+            renderingKey = null;
+            renderingVersions = null;
+            if (size() > 0) {
+                removeAll();
+            }
+            super.onBeforeRender();
+            return;
+        }
+
+        renderingKey = key;
+        renderingVersions = new HashMap<String, Long>();
+        for (String tag : getDependencies()) {
+            renderingVersions.put(tag, InvalidationTags.version(tag));
+        }
+        // 子コンポーネントのモデルの読み込みはonBeforeRenderで行われることが多いため、ここから記録する
+        Map<String, Long> versions = ResultCache.track(new Runnable() {
+            public void run() {
+                if (size() == 0) {
+                    populate();
+                }
+                CachingContainer.super.onBeforeRender();
+            }
+        });
+        merge(versions);
+    }
+
+    @Override
+    public void onComponentTagBody(final MarkupStream markupStream,
+            final ComponentTag openTag) {
+        if (cachedMarkup != null) {
+            replaceComponentTagBody(markupStream, openTag, cachedMarkup);
+            cachedMarkup = null;
+            return;
+        }
+        if (renderingKey == null) {
+            super.onComponentTagBody(markupStream, openTag);
+            return;
+        }
+
+        RequestCycle cycle = getRequestCycle();
+        Response original = cycle.getResponse();
+        StringResponse buffer = new StringResponse();
+        cycle.setResponse(buffer);
+        Map<String, Long> versions;
+        try {
+            versions = ResultCache.track(new Runnable() {
+                public void run() {
+                    CachingContainer.super.onComponentTagBody(markupStream,
+                            openTag);
+                }
+            });
+        } finally {
+            cycle.setResponse(original);
+        }
+        merge(versions);
+
+        String markup = buffer.getBuffer().toString();
+        original.write(markup);
+        getFragmentCache().put(renderingKey, markup, renderingVersions);
+        renderingKey = null;
+        renderingVersions = null;
+    }
+
+    @Override
+    protected void onDetach() {
+        cachedMarkup = null;
+        renderingKey = null;
+        renderingVersions = null;
+        super.onDetach();
+    }
+
+    /*
+     * 古いバージョンを優先し、表示中の無効化を検出できるようにする
+     */
+    private void merge(Map<String, Long> versions) {
+        for (Map.Entry<String, Long> entry : versions.entrySet()) {
+            Long current = renderingVersions.get(entry.getKey());
+            if (current == null
+                    || current.longValue() > entry.getValue().longValue()) {
+                renderingVersions.put(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.cache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.seasar.wicket.util.JmxUtil;
+
+/**
+ * {@link CachingContainer}が表示したマークアップを共有するS2コンポーネント。
+ * <p>
+ * マークアップは文字数の2倍をバイト数とみなして重みを計算し、
+ * 合計が{@link #setMaxBytes(long)}を超えると使われていないものから破棄されます。
+ * 格納したマークアップは、表示中に依存したタグ（{@link InvalidationTags}）のいずれかが無効化されると使用されなくなります。
+ * </p>
+ */
+public class FragmentCache implements FragmentCacheMBean {
+    private final LruCache<Object, Fragment> cache =
+            new LruCache<Object, Fragment>(4L * 1024 * 1024, 60000L);
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * キャッシュからマークアップを取得します。
+     *
+     * @return マークアップ。キャッシュにないか無効な場合はnull
+     */
+    public String get(Object key) {
+        Fragment fragment = cache.get(key);
+        if (fragment == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (!InvalidationTags.isValid(fragment.versions)) {
+            staleCount.incrementAndGet();
+            cache.remove(key);
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return fragment.markup;
+    }
+
+    /**
+     * マークアップを格納します。表示中に依存するタグが無効化されていた場合は格納しません。
+     *
+     * @param key
+     *            キー
+     * @param markup
+     *            マークアップ
+     * @param versions
+     *            表示を始めた時点の、依存するタグのバージョン
+     */
+    public void put(Object key, String markup, Map<String, Long> versions) {
+        if (InvalidationTags.isValid(versions)) {
+            cache.put(key, new Fragment(markup, versions), markup.length() * 2L);
+        }
+    }
+
+    /**
+     * すべてのキャッシュを破棄します。
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * MBeanServerに登録します。
+     */
+    public synchronized void register(String name) {
+        objectName = JmxUtil.register(this, "FragmentCache", name);
+    }
+
+    /**
+     * MBeanServerから登録を解除します。
+     */
+    public synchronized void unregister() {
+        JmxUtil.unregister(objectName);
+        objectName = null;
+    }
+
+    public long getMaxBytes() {
+        return cache.getMaxWeight();
+    }
+
+    /**
+     * 格納するマークアップのバイト数の合計の上限を設定します。デフォルトは4MBです。
+     */
+    public void setMaxBytes(long maxBytes) {
+        cache.setMaxWeight(maxBytes);
+    }
+
+    public long getTimeToLive() {
+        return cache.getTimeToLive();
+    }
+
+    /**
+     * キャッシュの有効期限をミリ秒で設定します。デフォルトは60000です。0を指定すると期限なしになります。
+     */
+    public void setTimeToLive(long timeToLive) {
+        cache.setTimeToLive(timeToLive);
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    public long getBytes() {
+        return cache.getWeight();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 無効化されていたため破棄した回数を取得します。
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    private static class Fragment {
+        final String markup;
+        final Map<String, Long> versions;
+
+        Fragment(String markup, Map<String, Long> versions) {
+            this.markup = markup;
+            this.versions = versions;
+        }
+    }
+}
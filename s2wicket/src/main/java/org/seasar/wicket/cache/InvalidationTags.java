@@ -0,0 +1,120 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.cache;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * キャッシュの無効化に使用するタグのバージョンを管理するクラス。
+ * <p>
+ * タグには通常、コンポーネントのクラス名やDaoのエンティティのクラス名を使用します。
+ * キャッシュは値を格納する時に依存するタグのバージョンを記録しておき、
+ * 取得時にいずれかのタグのバージョンが変わっていれば無効とみなします。
+ * 書き込みが行われたタグは{@link #invalidate(String)}でバージョンを進めます。
+ * </p>
+ */
+public final class InvalidationTags {
+    private static final ConcurrentMap<String, AtomicLong> versions =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    private InvalidationTags() {
+    }
+
+    /**
+     * コンポーネントのクラスから無効化に使用するタグを求めます。
+     * <p>
+     * タグはコンポーネントのクラス名です。ただし、S2Daoの{@code @S2Dao(bean = ...)}または{@code BEAN}定数で
+     * エンティティが指定されているDaoでは、エンティティのクラス名になります。
+     * </p>
+     */
+    public static String tagOf(Class<?> componentClass) {
+        Class<?> beanClass = getBeanClass(componentClass);
+        return (beanClass != null ? beanClass : componentClass).getName();
+    }
+
+    private static Class<?> getBeanClass(Class<?> daoClass) {
+        for (Annotation annotation : daoClass.getAnnotations()) {
+            try {
+                Method bean = annotation.annotationType().getMethod("bean");
+                if (bean.getReturnType() == Class.class) {
+                    Class<?> beanClass = (Class<?>) bean.invoke(annotation);
+                    if (beanClass != null && beanClass != void.class) {
+                        return beanClass;
+                    }
+                }
+            } catch (NoSuchMethodException ignore) {
+            } catch (IllegalAccessException ignore) {
+            } catch (InvocationTargetException ignore) {
+            }
+        }
+        try {
+            Field field = daoClass.getField("BEAN");
+            if (Modifier.isStatic(field.getModifiers())
+                    && field.getType() == Class.class) {
+                return (Class<?>) field.get(null);
+            }
+        } catch (NoSuchFieldException ignore) {
+        } catch (IllegalAccessException ignore) {
+        }
+        return null;
+    }
+
+    /**
+     * タグの現在のバージョンを取得します。
+     */
+    public static long version(String tag) {
+        AtomicLong version = versions.get(tag);
+        return version != null ? version.get() : 0L;
+    }
+
+    /**
+     * タグのバージョンを進め、そのタグに依存するキャッシュを無効にします。
+     */
+    public static void invalidate(String tag) {
+        AtomicLong version = versions.get(tag);
+        if (version == null) {
+            AtomicLong created = new AtomicLong();
+            version = versions.putIfAbsent(tag, created);
+            if (version == null) {
+                version = created;
+            }
+        }
+        version.incrementAndGet();
+    }
+
+    /**
+     * 記録したバージョンがすべて現在のバージョンと一致するかどうかを判定します。
+     *
+     * @param snapshot
+     *            タグからバージョンへのマップ
+     */
+    public static boolean isValid(Map<String, Long> snapshot) {
+        for (Map.Entry<String, Long> entry : snapshot.entrySet()) {
+            if (version(entry.getKey()) != entry.getValue().longValue()) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
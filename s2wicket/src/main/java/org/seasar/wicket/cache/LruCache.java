@@ -0,0 +1,187 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 重み付きのLRUキャッシュ。
+ * <p>
+ * 要素ごとに重み（件数やバイト数）を指定し、重みの合計が上限を超えると最も使われていない要素から破棄します。
+ * 有効期限（ミリ秒）を指定した場合は、期限切れの要素は取得時に破棄されます。
+ * すべてのメソッドは同期化されています。
+ * </p>
+ *
+ * @param <K>
+ *            キーの型
+ * @param <V>
+ *            値の型
+ */
+public class LruCache<K, V> {
+    private final LinkedHashMap<K, Node<V>> map =
+            new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+
+    private long maxWeight;
+    private long timeToLive;
+    private long weight;
+
+    private long evictionCount;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param maxWeight
+     *            重みの合計の上限
+     * @param timeToLive
+     *            有効期限（ミリ秒）。0以下の場合は期限なし
+     */
+    public LruCache(long maxWeight, long timeToLive) {
+        this.maxWeight = maxWeight;
+        this.timeToLive = timeToLive;
+    }
+
+    /**
+     * 値を取得します。存在しないか期限切れの場合はnullを返します。
+     */
+    public synchronized V get(K key) {
+        Node<V> node = map.get(key);
+        if (node == null) {
+            return null;
+        }
+        if (node.expiresAt > 0 && node.expiresAt <= System.currentTimeMillis()) {
+            map.remove(key);
+            weight -= node.weight;
+            onRemoved(key, node.value, node.weight);
+            return null;
+        }
+        return node.value;
+    }
+
+    /**
+     * 値を格納します。重みが上限を超える値は格納されません。
+     *
+     * @return 格納された場合はtrue
+     */
+    public boolean put(K key, V value, long valueWeight) {
+        return put(key, value, valueWeight, timeToLive);
+    }
+
+    /**
+     * 有効期限を指定して値を格納します。重みが上限を超える値は格納されません。
+     *
+     * @return 格納された場合はtrue
+     */
+    public synchronized boolean put(K key, V value, long valueWeight,
+            long valueTimeToLive) {
+        remove(key);
+        if (valueWeight > maxWeight) {
+            return false;
+        }
+        long expiresAt =
+                valueTimeToLive > 0 ? System.currentTimeMillis()
+                        + valueTimeToLive : 0;
+        map.put(key, new Node<V>(value, valueWeight, expiresAt));
+        weight += valueWeight;
+        evict();
+        return true;
+    }
+
+    /**
+     * 値を破棄します。
+     */
+    public synchronized V remove(K key) {
+        Node<V> node = map.remove(key);
+        if (node == null) {
+            return null;
+        }
+        weight -= node.weight;
+        onRemoved(key, node.value, node.weight);
+        return node.value;
+    }
+
+    /**
+     * すべての値を破棄します。
+     */
+    public synchronized void clear() {
+        for (Map.Entry<K, Node<V>> entry : map.entrySet()) {
+            onRemoved(entry.getKey(), entry.getValue().value,
+                    entry.getValue().weight);
+        }
+        map.clear();
+        weight = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<K, Node<V>>> it = map.entrySet().iterator();
+        while (weight > maxWeight && it.hasNext()) {
+            Map.Entry<K, Node<V>> eldest = it.next();
+            it.remove();
+            weight -= eldest.getValue().weight;
+            ++evictionCount;
+            onRemoved(eldest.getKey(), eldest.getValue().value,
+                    eldest.getValue().weight);
+        }
+    }
+
+    /**
+     * 値が破棄された時に呼び出されます。ロックを保持したまま呼び出されることに注意してください。
+     */
+    protected void onRemoved(K key, V value, long valueWeight) {
+    }
+
+    public synchronized int size() {
+        return map.size();
+    }
+
+    public synchronized long getWeight() {
+        return weight;
+    }
+
+    public synchronized long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public synchronized void setMaxWeight(long maxWeight) {
+        this.maxWeight = maxWeight;
+        evict();
+    }
+
+    public synchronized long getTimeToLive() {
+        return timeToLive;
+    }
+
+    public synchronized void setTimeToLive(long timeToLive) {
+        this.timeToLive = timeToLive;
+    }
+
+    public synchronized long getEvictionCount() {
+        return evictionCount;
+    }
+
+    private static class Node<V> {
+        final V value;
+        final long weight;
+        final long expiresAt;
+
+        Node(V value, long weight, long expiresAt) {
+            this.value = value;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
@@ -0,0 +1,353 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.cache;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.seasar.wicket.util.JmxUtil;
+
+/**
+ * メソッドの戻り値をキャッシュするS2コンポーネント。
+ * <p>
+ * 値の重みは、コレクションや配列の場合は要素数+1、それ以外は1として計算し、
+ * 重みの合計が{@link #setMaxWeight(long)}を超えると使われていないものから破棄されます。
+ * </p>
+ * <p>
+ * 値を読み込んでいる間に呼び出されたコンポーネントやDaoの読み込みは{@link #dependOn(String)}で記録され、
+ * 格納される値はそれらのタグ（{@link InvalidationTags}）に依存します。
+ * 読み込み中にタグが無効化された場合、その値は格納されません。
+ * また、同じキーの読み込みが同時に要求された場合は、最初のスレッドだけが読み込み、他のスレッドはその結果を待ちます。
+ * 読み込み中のスレッドが同じキーを再び要求した場合は、待たずにその場で読み込みます（この値は格納しません）。
+ * </p>
+ * <p>
+ * キャッシュした値は複数のスレッドで共有されるため、呼び出し側で変更しないでください。
+ * </p>
+ */
+public class ResultCache implements ResultCacheMBean {
+    private static final ThreadLocal<Frame> currentFrame =
+            new ThreadLocal<Frame>();
+
+    private final LruCache<Object, Entry> cache =
+            new LruCache<Object, Entry>(10000L, 60000L);
+
+    private final ConcurrentMap<Object, Loading> loadings =
+            new ConcurrentHashMap<Object, Loading>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong waitCount = new AtomicLong();
+    private final AtomicLong staleCount = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * 値の読み込み処理。
+     */
+    public interface Loader {
+        Object load() throws Throwable;
+    }
+
+    /**
+     * 現在読み込み中の値が、指定したタグに依存することを記録します。読み込み中でなければ何もしません。
+     */
+    public static void dependOn(String tag) {
+        Frame frame = currentFrame.get();
+        if (frame != null) {
+            frame.dependOn(tag, InvalidationTags.version(tag));
+        }
+    }
+
+    /**
+     * 別のスレッドで記録されたタグとバージョンを、現在読み込み中の値の依存として記録します。
+     * 読み込み中でなければ何もしません。
+     *
+     * @param versions
+     *            {@link #track(Runnable)}が返したタグとバージョン
+     */
+    public static void dependOn(Map<String, Long> versions) {
+        inherit(versions);
+    }
+
+    /**
+     * 現在のスレッドで値を読み込み中（依存を記録中）かどうかを返します。
+     */
+    public static boolean isTracking() {
+        return currentFrame.get() != null;
+    }
+
+    /**
+     * 処理を実行し、その間に{@link #dependOn(String)}で記録されたタグとバージョンを返します。
+     * 記録されたタグは、外側で読み込み中の値にも依存として引き継がれます。
+     */
+    public static Map<String, Long> track(Runnable task) {
+        Frame parent = currentFrame.get();
+        Frame frame = new Frame();
+        currentFrame.set(frame);
+        try {
+            task.run();
+        } finally {
+            if (parent != null) {
+                currentFrame.set(parent);
+            } else {
+                currentFrame.remove();
+            }
+        }
+        inherit(frame.versions);
+        return frame.versions;
+    }
+
+    /**
+     * キャッシュから値を取得します。キャッシュにないか無効な場合は読み込んで格納します。
+     *
+     * @param key
+     *            キー
+     * @param tag
+     *            値が依存するタグ（通常は呼び出し先のコンポーネントのクラス名）
+     * @param timeToLive
+     *            有効期限（ミリ秒）。負の値の場合はデフォルト値
+     * @param loader
+     *            値の読み込み処理
+     */
+    public Object get(Object key, String tag, long timeToLive, Loader loader)
+            throws Throwable {
+        Entry entry = cache.get(key);
+        if (entry != null) {
+            if (InvalidationTags.isValid(entry.versions)) {
+                hitCount.incrementAndGet();
+                inherit(entry.versions);
+                return entry.value;
+            }
+            staleCount.incrementAndGet();
+            cache.remove(key);
+        }
+
+        Loading loading = new Loading();
+        Loading current = loadings.putIfAbsent(key, loading);
+        if (current != null && current.owner == Thread.currentThread()) {
+            // 自分自身の読み込み中に再入したので、待たずにその場で読み込む
+            missCount.incrementAndGet();
+            dependOn(tag);
+            return loader.load();
+        }
+        if (current != null) {
+            // 他のスレッドが読み込み中なので結果を待つ
+            waitCount.incrementAndGet();
+            Object value = current.await();
+            inherit(current.versions);
+            return value;
+        }
+
+        missCount.incrementAndGet();
+        try {
+            Frame parent = currentFrame.get();
+            Frame frame = new Frame();
+            frame.dependOn(tag, InvalidationTags.version(tag));
+            currentFrame.set(frame);
+            Object value;
+            try {
+                value = loader.load();
+            } finally {
+                if (parent != null) {
+                    currentFrame.set(parent);
+                } else {
+                    currentFrame.remove();
+                }
+            }
+            Map<String, Long> versions = frame.versions;
+            if (InvalidationTags.isValid(versions)) {
+                if (timeToLive < 0) {
+                    cache.put(key, new Entry(value, versions), weigh(value));
+                } else {
+                    cache.put(key, new Entry(value, versions), weigh(value),
+                            timeToLive);
+                }
+            }
+            inherit(versions);
+            loading.complete(value, versions);
+            return value;
+        } catch (Throwable t) {
+            loading.fail(t);
+            throw t;
+        } finally {
+            loadings.remove(key, loading);
+        }
+    }
+
+    /**
+     * すべてのキャッシュを破棄します。
+     */
+    public void clear() {
+        cache.clear();
+    }
+
+    /**
+     * MBeanServerに登録します。
+     */
+    public synchronized void register(String name) {
+        objectName = JmxUtil.register(this, "ResultCache", name);
+    }
+
+    /**
+     * MBeanServerから登録を解除します。
+     */
+    public synchronized void unregister() {
+        JmxUtil.unregister(objectName);
+        objectName = null;
+    }
+
+    /**
+     * 値の重みを計算します。
+     */
+    protected long weigh(Object value) {
+        if (value instanceof Collection<?>) {
+            return ((Collection<?>) value).size() + 1L;
+        } else if (value instanceof Map<?, ?>) {
+            return ((Map<?, ?>) value).size() + 1L;
+        } else if (value != null && value.getClass().isArray()) {
+            return Array.getLength(value) + 1L;
+        }
+        return 1L;
+    }
+
+    private static void inherit(Map<String, Long> versions) {
+        Frame frame = currentFrame.get();
+        if (frame != null) {
+            for (Map.Entry<String, Long> entry : versions.entrySet()) {
+                frame.dependOn(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    public long getMaxWeight() {
+        return cache.getMaxWeight();
+    }
+
+    /**
+     * 格納する値の重みの合計の上限を設定します。デフォルトは10000です。
+     */
+    public void setMaxWeight(long maxWeight) {
+        cache.setMaxWeight(maxWeight);
+    }
+
+    public long getTimeToLive() {
+        return cache.getTimeToLive();
+    }
+
+    /**
+     * キャッシュの有効期限をミリ秒で設定します。デフォルトは60000です。0を指定すると期限なしになります。
+     */
+    public void setTimeToLive(long timeToLive) {
+        cache.setTimeToLive(timeToLive);
+    }
+
+    public int getSize() {
+        return cache.size();
+    }
+
+    public long getWeight() {
+        return cache.getWeight();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 他のスレッドの読み込みを待って結果を受け取った回数を取得します。
+     */
+    public long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * 無効化されていたため破棄した回数を取得します。
+     */
+    public long getStaleCount() {
+        return staleCount.get();
+    }
+
+    public long getEvictionCount() {
+        return cache.getEvictionCount();
+    }
+
+    public double getHitRatio() {
+        long hits = hitCount.get() + waitCount.get();
+        long total = hits + missCount.get();
+        return total > 0 ? (double) hits / total : 0.0;
+    }
+
+    private static class Entry {
+        final Object value;
+        final Map<String, Long> versions;
+
+        Entry(Object value, Map<String, Long> versions) {
+            this.value = value;
+            this.versions = versions;
+        }
+    }
+
+    private static class Frame {
+        final Map<String, Long> versions = new HashMap<String, Long>();
+
+        void dependOn(String tag, long version) {
+            Long current = versions.get(tag);
+            // 古いバージョンを優先し、読み込み中の無効化を検出できるようにする
+            if (current == null || current.longValue() > version) {
+                versions.put(tag, version);
+            }
+        }
+    }
+
+    private static class Loading {
+        final Thread owner = Thread.currentThread();
+        private final CountDownLatch latch = new CountDownLatch(1);
+        private Object value;
+        private Throwable throwable;
+        Map<String, Long> versions = new HashMap<String, Long>();
+
+        void complete(Object value, Map<String, Long> versions) {
+            this.value = value;
+            this.versions = versions;
+            latch.countDown();
+        }
+
+        void fail(Throwable throwable) {
+            this.throwable = throwable;
+            latch.countDown();
+        }
+
+        Object await() throws Throwable {
+            latch.await();
+            if (throwable != null) {
+                throw throwable;
+            }
+            return value;
+        }
+    }
+}
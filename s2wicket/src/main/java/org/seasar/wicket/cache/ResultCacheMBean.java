@@ -0,0 +1,62 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.cache;
+
+/**
+ * {@link ResultCache}をJMXで公開するためのインタフェース。
+ */
+public interface ResultCacheMBean {
+    long getMaxWeight();
+
+    void setMaxWeight(long maxWeight);
+
+    long getTimeToLive();
+
+    void setTimeToLive(long timeToLive);
+
+    /**
+     * 格納している値の数を返します。
+     */
+    int getSize();
+
+    /**
+     * 格納している値の重みの合計を返します。
+     */
+    long getWeight();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    /**
+     * 他のスレッドの読み込みを待って結果を受け取った回数を返します。
+     */
+    long getWaitCount();
+
+    /**
+     * 無効化されていたため破棄した回数を返します。
+     */
+    long getStaleCount();
+
+    long getEvictionCount();
+
+    double getHitRatio();
+
+    /**
+     * すべてのキャッシュを破棄します。
+     */
+    void clear();
+}
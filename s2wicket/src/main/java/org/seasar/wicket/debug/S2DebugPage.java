@@ -14,10 +14,10 @@ import org.apache.wicket.markup.resolver.IComponentResolver;
 import org.apache.wicket.model.CompoundPropertyModel;
 import org.seasar.framework.container.ComponentDef;
 import org.seasar.framework.container.S2Container;
-import org.seasar.framework.container.factory.SingletonS2ContainerFactory;
 import org.seasar.framework.container.util.SmartDeployUtil;
 import org.seasar.framework.env.Env;
 import org.seasar.framework.util.StringUtil;
+import org.seasar.wicket.S2ContainerRegistry;
 
 public class S2DebugPage extends WebPage {
     private static final long serialVersionUID = 1L;
@@ -27,7 +27,7 @@ public class S2DebugPage extends WebPage {
 
         add(new Label("env", Env.getValue()));
         add(new S2ContainerFragment("root",
-                SingletonS2ContainerFactory.getContainer(), 0));
+                S2ContainerRegistry.getContainer(), 0));
     }
 
     private class S2ContainerFragment extends Fragment implements
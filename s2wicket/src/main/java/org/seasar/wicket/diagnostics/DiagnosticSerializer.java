@@ -0,0 +1,48 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.diagnostics;
+
+import org.apache.wicket.Page;
+import org.apache.wicket.serialize.ISerializer;
+
+/**
+ * ページをシリアライズした時のバイト数を{@link StatelessDiagnostics}に記録する{@link ISerializer}。
+ * <p>
+ * ページストアはページを格納する時にのみシリアライズするため、ページが格納された回数とバイト数がわかります。
+ * </p>
+ */
+public class DiagnosticSerializer implements ISerializer {
+    private final ISerializer delegate;
+    private final StatelessDiagnostics diagnostics;
+
+    public DiagnosticSerializer(ISerializer delegate,
+            StatelessDiagnostics diagnostics) {
+        this.delegate = delegate;
+        this.diagnostics = diagnostics;
+    }
+
+    public byte[] serialize(Object object) {
+        byte[] data = delegate.serialize(object);
+        if (data != null && object instanceof Page) {
+            diagnostics.recordStored(object.getClass(), data.length);
+        }
+        return data;
+    }
+
+    public Object deserialize(byte[] data) {
+        return delegate.deserialize(data);
+    }
+}
@@ -0,0 +1,199 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.diagnostics;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.wicket.Component;
+import org.apache.wicket.Page;
+import org.apache.wicket.core.request.handler.IPageRequestHandler;
+import org.apache.wicket.request.IRequestHandler;
+import org.apache.wicket.request.component.IRequestablePage;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.apache.wicket.util.visit.IVisit;
+import org.apache.wicket.util.visit.IVisitor;
+import org.seasar.wicket.util.JmxUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ページがステートレスのまま処理されたかどうかを、ページクラスごとに集計するリクエストサイクルリスナ。
+ * <p>
+ * ページがステートフルになった場合は、ステートフルの原因となったコンポーネント
+ * （ステートレスヒントがfalseのコンポーネントやビヘイビアを持つコンポーネント）のパスを、
+ * ページクラスごとに最初の1回だけログに出力します。
+ * {@link DiagnosticSerializer}と組み合わせると、ページストアに格納された回数とバイト数も集計します。
+ * </p>
+ * <p>
+ * S2WicketFilterの初期化パラメータstatelessDiagnosticsにtrueを指定すると有効になり、
+ * JMXに「org.seasar.wicket:type=StatelessDiagnostics,name=フィルタ名」として登録されます。
+ * </p>
+ */
+public class StatelessDiagnostics extends AbstractRequestCycleListener
+        implements StatelessDiagnosticsMBean {
+    private static final Logger logger =
+            LoggerFactory.getLogger(StatelessDiagnostics.class);
+
+    /** 記録するステートフルなコンポーネントの最大数 */
+    private static final int MAX_STATEFUL_COMPONENTS = 10;
+
+    private final ConcurrentMap<String, PageStats> pages =
+            new ConcurrentHashMap<String, PageStats>();
+
+    private ObjectName objectName;
+
+    @Override
+    public void onRequestHandlerExecuted(RequestCycle cycle,
+            IRequestHandler handler) {
+        if (!(handler instanceof IPageRequestHandler)) {
+            return;
+        }
+        IPageRequestHandler pageHandler = (IPageRequestHandler) handler;
+        if (!pageHandler.isPageInstanceCreated()) {
+            return;
+        }
+        IRequestablePage requestablePage = pageHandler.getPage();
+        if (!(requestablePage instanceof Page)) {
+            return;
+        }
+        Page page = (Page) requestablePage;
+        PageStats stats = getPageStats(page.getClass());
+        stats.requests.incrementAndGet();
+        if (page.isPageStateless()) {
+            stats.statelessRequests.incrementAndGet();
+        } else if (stats.statefulComponents == null) {
+            List<String> components = findStatefulComponents(page);
+            stats.statefulComponents = components;
+            logger.info("[stateless] {} is stateful because of {}",
+                    page.getClass().getName(), components);
+        }
+    }
+
+    /**
+     * ページがページストアに格納されたことを記録します。
+     *
+     * @param pageClass
+     *            ページのクラス
+     * @param bytes
+     *            シリアライズされたページのバイト数
+     */
+    public void recordStored(Class<?> pageClass, int bytes) {
+        PageStats stats = getPageStats(pageClass);
+        stats.stored.incrementAndGet();
+        stats.storedBytes.addAndGet(bytes);
+    }
+
+    public String[] getPages() {
+        Map<String, PageStats> sorted = new TreeMap<String, PageStats>(pages);
+        List<String> result = new ArrayList<String>();
+        for (Map.Entry<String, PageStats> entry : sorted.entrySet()) {
+            PageStats stats = entry.getValue();
+            long stored = stats.stored.get();
+            long bytes = stats.storedBytes.get();
+            StringBuilder sb = new StringBuilder(entry.getKey());
+            sb.append(" requests=").append(stats.requests.get());
+            sb.append(" stateless=").append(stats.statelessRequests.get());
+            sb.append(" stored=").append(stored);
+            sb.append(" bytes=").append(bytes);
+            if (stored > 0) {
+                sb.append(" avgBytes=").append(bytes / stored);
+            }
+            if (stats.statefulComponents != null) {
+                sb.append(" statefulComponents=").append(
+                        stats.statefulComponents);
+            }
+            result.add(sb.toString());
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    public long getStoredBytes() {
+        long total = 0;
+        for (PageStats stats : pages.values()) {
+            total += stats.storedBytes.get();
+        }
+        return total;
+    }
+
+    public void reset() {
+        pages.clear();
+    }
+
+    /**
+     * MBeanServerに登録します。
+     */
+    public void register(String name) {
+        objectName = JmxUtil.register(this, "StatelessDiagnostics", name);
+    }
+
+    /**
+     * MBeanServerから登録を解除します。
+     */
+    public void unregister() {
+        JmxUtil.unregister(objectName);
+        objectName = null;
+    }
+
+    private PageStats getPageStats(Class<?> pageClass) {
+        String name = pageClass.getName();
+        PageStats stats = pages.get(name);
+        if (stats == null) {
+            PageStats created = new PageStats();
+            stats = pages.putIfAbsent(name, created);
+            if (stats == null) {
+                stats = created;
+            }
+        }
+        return stats;
+    }
+
+    private static List<String> findStatefulComponents(Page page) {
+        final List<String> result = new ArrayList<String>();
+        if (!page.isStateless()) {
+            result.add("(page)");
+        }
+        page.visitChildren(new IVisitor<Component, Void>() {
+            public void component(Component component, IVisit<Void> visit) {
+                if (!component.isStateless()) {
+                    result.add(component.getPageRelativePath() + " ("
+                            + component.getClass().getName() + ")");
+                    if (result.size() >= MAX_STATEFUL_COMPONENTS) {
+                        visit.stop();
+                    }
+                }
+            }
+        });
+        return Collections.unmodifiableList(result);
+    }
+
+    private static class PageStats {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicLong statelessRequests = new AtomicLong();
+        final AtomicLong stored = new AtomicLong();
+        final AtomicLong storedBytes = new AtomicLong();
+        volatile List<String> statefulComponents;
+    }
+}
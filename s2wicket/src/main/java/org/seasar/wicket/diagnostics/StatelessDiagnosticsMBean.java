@@ -0,0 +1,36 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.diagnostics;
+
+/**
+ * {@link StatelessDiagnostics}をJMXで公開するためのインタフェース。
+ */
+public interface StatelessDiagnosticsMBean {
+    /**
+     * ページクラスごとの集計結果を1行ずつ返します。
+     */
+    String[] getPages();
+
+    /**
+     * ページストアに格納されたページのバイト数の合計を返します。
+     */
+    long getStoredBytes();
+
+    /**
+     * 集計結果を破棄します。
+     */
+    void reset();
+}
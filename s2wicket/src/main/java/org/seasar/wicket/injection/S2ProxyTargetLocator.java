@@ -19,7 +19,8 @@ import java.io.Serializable;
 
 import org.apache.wicket.proxy.IProxyTargetLocator;
 import org.seasar.framework.container.assembler.ProxyBindingTypeDef;
-import org.seasar.framework.container.factory.SingletonS2ContainerFactory;
+import org.seasar.wicket.S2ContainerRegistry;
+import org.seasar.wicket.profiling.RequestTrace;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -27,6 +28,12 @@ import org.slf4j.LoggerFactory;
  * S2Container用のProxyTargetLocator。
  * <p>
  * {@link ProxyBindingTypeDef}クラスにおいてコンポーネントの代わりにDIされたプロクシが実体を取り出す際に使用します。
+ * 作成時のアプリケーションキーを保持し、デシリアライズされた後もそのアプリケーションのS2Containerから取り出します。
+ * </p>
+ * <p>
+ * アプリケーションキーを追加した際にシリアライズ形式は互換性のある変更として扱い、serialVersionUIDは変えていません。
+ * アプリケーションキーを持たない以前の形式からデシリアライズした場合はnullとなり、
+ * 現在のスレッドのアプリケーションのS2Containerから取り出します。
  * </p>
  * 
  * @author TAKEUCHI Hideyuki (chimerast)
@@ -38,6 +45,9 @@ public class S2ProxyTargetLocator implements IProxyTargetLocator, Serializable {
 
     private final Object key;
 
+    /** S2Containerを取り出すためのアプリケーションキー（以前の形式からデシリアライズした場合はnull） */
+    private final String applicationKey;
+
     /**
      * コンストラクタ。
      * 
@@ -46,9 +56,20 @@ public class S2ProxyTargetLocator implements IProxyTargetLocator, Serializable {
      */
     public S2ProxyTargetLocator(Object key) {
         this.key = key;
+        this.applicationKey = S2ContainerRegistry.getCurrentApplicationKey();
     }
 
     public Object locateProxyTarget() {
-        return SingletonS2ContainerFactory.getContainer().getComponent(key);
+        long start = RequestTrace.enter(RequestTrace.LOCATE);
+        try {
+            if (applicationKey == null) {
+                // アプリケーションキーを保持する前にシリアライズされたもの
+                return S2ContainerRegistry.getContainer().getComponent(key);
+            }
+            return S2ContainerRegistry.getContainer(applicationKey).getComponent(
+                    key);
+        } finally {
+            RequestTrace.exit(RequestTrace.LOCATE, start, null);
+        }
     }
 }
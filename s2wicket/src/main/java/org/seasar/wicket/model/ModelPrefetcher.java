@@ -0,0 +1,347 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.model;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.MetaDataKey;
+import org.apache.wicket.Session;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.request.cycle.AbstractRequestCycleListener;
+import org.apache.wicket.request.cycle.RequestCycle;
+import org.seasar.framework.container.ExternalContext;
+import org.seasar.framework.container.S2Container;
+import org.seasar.wicket.S2ContainerRegistry;
+import org.seasar.wicket.cache.ResultCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * {@link PrefetchableModel}の読み込みを別スレッドで行うリクエストサイクルリスナ。
+ * <p>
+ * 読み込みはスレッド数とキューの大きさが制限されたスレッドプールで行います。
+ * キューが一杯の場合は先読みせず、表示時にリクエストのスレッドで読み込みます。
+ * 読み込みを行うスレッドには、リクエストのスレッドのコンテキストクラスローダ、
+ * WicketのApplicationとSession、S2ContainerのExternalContextのリクエストとレスポンスを引き継ぎます。
+ * RequestCycleとトランザクションは引き継がないため、先読みするのは読み込みのみを行う処理にしてください。
+ * </p>
+ * <p>
+ * {@link ResultCache}で依存を記録中（CachingContainerの表示中など）に開始した読み込みは、
+ * 読み込みを行うスレッドでも依存を記録し、結果を受け取ったスレッドの記録に引き継ぎます。
+ * </p>
+ * <p>
+ * リクエストの終了時に、表示で使用されなかった読み込みは取り消されます。
+ * 既に始まっている読み込みは、引き継いだリクエストやSessionがリクエストの終了後に使われないよう、
+ * 表示時に完了を待つ最大の時間まで終了を待ちます。
+ * S2WicketFilterの初期化パラメータprefetchThreadsを指定すると有効になります。
+ * </p>
+ */
+public class ModelPrefetcher extends AbstractRequestCycleListener {
+    private static final Logger logger =
+            LoggerFactory.getLogger(ModelPrefetcher.class);
+
+    private static final MetaDataKey<ModelPrefetcher> KEY =
+            new MetaDataKey<ModelPrefetcher>() {
+                private static final long serialVersionUID = 1L;
+            };
+
+    private final ThreadPoolExecutor executor;
+    private final long timeout;
+
+    /** リクエストのスレッドで開始した読み込み */
+    private final ThreadLocal<List<Pending>> pendings =
+            new ThreadLocal<List<Pending>>();
+
+    /**
+     * コンストラクタ。
+     *
+     * @param threads
+     *            読み込みを行うスレッドの数
+     * @param queueSize
+     *            読み込みを待つキューの大きさ
+     * @param timeout
+     *            表示時に読み込みの完了を待つ最大の時間（ミリ秒）
+     */
+    public ModelPrefetcher(int threads, int queueSize, long timeout) {
+        final AtomicInteger count = new AtomicInteger();
+        this.executor =
+                new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)),
+                        new ThreadFactory() {
+                            public Thread newThread(Runnable r) {
+                                Thread thread =
+                                        new Thread(r, "s2wicket-prefetch-"
+                                                + count.incrementAndGet());
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeout = timeout;
+    }
+
+    /**
+     * アプリケーションに登録されているインスタンスを取得します。
+     *
+     * @return 登録されていない場合はnull
+     */
+    public static ModelPrefetcher get() {
+        if (!Application.exists()) {
+            return null;
+        }
+        return Application.get().getMetaData(KEY);
+    }
+
+    /**
+     * アプリケーションに登録します。
+     */
+    public void register(Application application) {
+        application.setMetaData(KEY, this);
+        application.getRequestCycleListeners().add(this);
+    }
+
+    /**
+     * 表示時に読み込みの完了を待つ最大の時間（ミリ秒）を取得します。
+     */
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /**
+     * 読み込みを開始します。
+     *
+     * @return 読み込みの結果。キューが一杯の場合はnull
+     */
+    public <T> Future<T> submit(final Callable<T> loader) {
+        final boolean tracking = ResultCache.isTracking();
+        final ClassLoader classLoader =
+                Thread.currentThread().getContextClassLoader();
+        final Application application = ThreadContext.getApplication();
+        final Session session = ThreadContext.getSession();
+        final S2Container container = S2ContainerRegistry.getContainer();
+        final ExternalContext externalContext = container.getExternalContext();
+        final Object request =
+                externalContext != null ? externalContext.getRequest() : null;
+        final Object response =
+                externalContext != null ? externalContext.getResponse() : null;
+
+        final Pending pending = new Pending();
+        Future<Result<T>> task;
+        try {
+            task = executor.submit(new Callable<Result<T>>() {
+                public Result<T> call() throws Exception {
+                    if (!pending.start()) {
+                        // リクエストが既に終了している
+                        return new Result<T>(null, null);
+                    }
+                    Thread thread = Thread.currentThread();
+                    ClassLoader originalClassLoader = thread.getContextClassLoader();
+                    ThreadContext originalContext = ThreadContext.detach();
+                    thread.setContextClassLoader(classLoader);
+                    ThreadContext.setApplication(application);
+                    ThreadContext.setSession(session);
+                    if (externalContext != null) {
+                        externalContext.setRequest(request);
+                        externalContext.setResponse(response);
+                    }
+                    try {
+                        return tracking ? trackedCall(loader) : new Result<T>(
+                                loader.call(), null);
+                    } finally {
+                        if (externalContext != null) {
+                            externalContext.setRequest(null);
+                            externalContext.setResponse(null);
+                        }
+                        ThreadContext.restore(originalContext);
+                        thread.setContextClassLoader(originalClassLoader);
+                        pending.done.countDown();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            return null;
+        }
+        pending.task = task;
+
+        List<Pending> list = pendings.get();
+        if (list == null) {
+            list = new ArrayList<Pending>();
+            pendings.set(list);
+        }
+        list.add(pending);
+        return new ResultFuture<T>(task, pending);
+    }
+
+    @Override
+    public void onDetach(RequestCycle cycle) {
+        List<Pending> list = pendings.get();
+        if (list == null) {
+            return;
+        }
+        pendings.remove();
+        // 表示で使用されなかった読み込みを先にすべて取り消し、始まっているものは終了を待つ
+        List<Pending> running = new ArrayList<Pending>();
+        for (Pending pending : list) {
+            if (pending.abandon()) {
+                pending.task.cancel(false);
+            } else {
+                running.add(pending);
+            }
+        }
+        long deadline = System.currentTimeMillis() + timeout;
+        for (Pending pending : running) {
+            long wait = deadline - System.currentTimeMillis();
+            try {
+                if (wait <= 0 || !pending.done.await(wait, TimeUnit.MILLISECONDS)) {
+                    logger.warn("[prefetch] a prefetch is still running after the request ended.");
+                    pending.task.cancel(true);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                pending.task.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * スレッドプールを終了します。
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /*
+     * 読み込み中に記録された依存とともに値を返します。
+     */
+    private static <T> Result<T> trackedCall(final Callable<T> loader)
+            throws Exception {
+        final Object[] value = new Object[1];
+        final Exception[] exception = new Exception[1];
+        Map<String, Long> versions = ResultCache.track(new Runnable() {
+            public void run() {
+                try {
+                    value[0] = loader.call();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    exception[0] = e;
+                }
+            }
+        });
+        if (exception[0] != null) {
+            throw exception[0];
+        }
+        @SuppressWarnings("unchecked")
+        T result = (T) value[0];
+        return new Result<T>(result, versions);
+    }
+
+    /*
+     * リクエストのスレッドで開始した読み込みの状態。
+     */
+    private static final class Pending {
+        private static final int NEW = 0;
+        private static final int STARTED = 1;
+        private static final int ABANDONED = 2;
+
+        private final AtomicInteger state = new AtomicInteger(NEW);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Future<?> task;
+
+        /*
+         * 読み込みを始める場合はtrueを返します。
+         */
+        boolean start() {
+            return state.compareAndSet(NEW, STARTED);
+        }
+
+        /*
+         * まだ始まっていない読み込みを放棄し、放棄できた場合はtrueを返します。
+         */
+        boolean abandon() {
+            return state.compareAndSet(NEW, ABANDONED);
+        }
+    }
+
+    private static final class Result<T> {
+        final T value;
+        final Map<String, Long> versions;
+
+        Result(T value, Map<String, Long> versions) {
+            this.value = value;
+            this.versions = versions;
+        }
+    }
+
+    /*
+     * 結果を受け取ったスレッドに、読み込み中に記録された依存を引き継ぐFuture。
+     * 始まっている読み込みは、割り込みを指定しない限り取り消せません。
+     */
+    private static final class ResultFuture<T> implements Future<T> {
+        private final Future<Result<T>> task;
+        private final Pending pending;
+
+        ResultFuture(Future<Result<T>> task, Pending pending) {
+            this.task = task;
+            this.pending = pending;
+        }
+
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            if (!pending.abandon() && !mayInterruptIfRunning) {
+                return false;
+            }
+            return task.cancel(mayInterruptIfRunning);
+        }
+
+        public boolean isCancelled() {
+            return task.isCancelled();
+        }
+
+        public boolean isDone() {
+            return task.isDone();
+        }
+
+        public T get() throws InterruptedException, ExecutionException {
+            return unwrap(task.get());
+        }
+
+        public T get(long timeout, TimeUnit unit) throws InterruptedException,
+                ExecutionException, TimeoutException {
+            return unwrap(task.get(timeout, unit));
+        }
+
+        private T unwrap(Result<T> result) {
+            if (result.versions != null) {
+                ResultCache.dependOn(result.versions);
+            }
+            return result.value;
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.model;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.wicket.WicketRuntimeException;
+import org.apache.wicket.model.LoadableDetachableModel;
+
+/**
+ * 表示の前に別スレッドで値の読み込みを開始できるデタッチ可能なモデル。
+ * <p>
+ * コンポーネントのonConfigureで{@link #prefetch()}を呼び出すと、{@link ModelPrefetcher}で読み込みを開始し、
+ * 表示時に値が要求されるとその完了を待ちます。複数のモデルを先読みすると、
+ * ページの表示にかかる時間は読み込みの合計ではなく、最も遅い読み込みの時間に近くなります。
+ * </p>
+ * <p>
+ * ModelPrefetcherが登録されていないか、キューが一杯の場合は、通常どおり表示時に読み込みます。
+ * 完了を待つ時間を過ぎた場合、読み込みが始まっていなければ取り消してリクエストのスレッドで読み込み、
+ * 始まっていれば例外を投げます。
+ * </p>
+ *
+ * <pre>
+ * protected void onConfigure() {
+ *     super.onConfigure();
+ *     messagesModel.prefetch();
+ * }
+ * </pre>
+ *
+ * @param <T>
+ *            モデルの値の型
+ */
+public abstract class PrefetchableModel<T> extends LoadableDetachableModel<T> {
+    private static final long serialVersionUID = 1L;
+
+    private transient Future<T> future;
+    /** 先読みを開始したModelPrefetcherの、完了を待つ最大の時間（ミリ秒） */
+    private transient long timeout;
+
+    /**
+     * 別スレッドで値の読み込みを開始します。読み込み済みか、読み込み中の場合は何もしません。
+     */
+    public void prefetch() {
+        if (isAttached() || future != null) {
+            return;
+        }
+        ModelPrefetcher prefetcher = ModelPrefetcher.get();
+        if (prefetcher == null) {
+            return;
+        }
+        // 表示時にApplicationが破棄されていても待てるよう、ここで取得しておく
+        timeout = prefetcher.getTimeout();
+        future = prefetcher.submit(new Callable<T>() {
+            public T call() {
+                return fetch();
+            }
+        });
+    }
+
+    @Override
+    protected final T load() {
+        Future<T> current = future;
+        future = null;
+        if (current == null) {
+            return fetch();
+        }
+        try {
+            return current.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (current.cancel(false)) {
+                // まだ始まっていなかったのでこのスレッドで読み込む
+                return fetch();
+            }
+            throw new WicketRuntimeException("prefetch timed out: " + this, e);
+        } catch (CancellationException e) {
+            return fetch();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new WicketRuntimeException(e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new WicketRuntimeException(cause);
+        }
+    }
+
+    /**
+     * 値を読み込みます。先読みの場合は別スレッドで呼び出されます。
+     *
+     * @return モデルの値
+     */
+    protected abstract T fetch();
+
+    @Override
+    protected void onDetach() {
+        if (future != null) {
+            // 始まっている読み込みはModelPrefetcherがリクエストの終了時に待つ
+            future.cancel(false);
+            future = null;
+        }
+        super.onDetach();
+    }
+}
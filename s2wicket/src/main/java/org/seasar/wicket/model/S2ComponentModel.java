@@ -0,0 +1,84 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.model;
+
+import org.seasar.framework.beans.factory.BeanDescFactory;
+
+/**
+ * S2Containerのコンポーネントのメソッドを呼び出して値を読み込むモデル。
+ * <p>
+ * {@code new PropertyModel(this, "boardLogic.messages")}のようにプロクシ経由で毎回メソッドを呼び出す代わりに、
+ * 次のように記述することで、メソッドの呼び出しは1リクエストにつき1回になり、
+ * 読み込んだ値はデタッチ時に破棄されます。
+ * </p>
+ *
+ * <pre>
+ * new S2ComponentModel&lt;List&lt;Message&gt;&gt;(BoardLogic.class, &quot;getMessages&quot;)
+ * </pre>
+ * <p>
+ * メソッドの引数はページと一緒にシリアライズされるため、Serializableである必要があります。
+ * </p>
+ *
+ * @param <T>
+ *            モデルの値の型
+ */
+public class S2ComponentModel<T> extends S2LoadableModel<Object, T> {
+    private static final long serialVersionUID = 1L;
+
+    private final String methodName;
+    private final Object[] args;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param componentClass
+     *            S2Containerからコンポーネントを取り出すためのクラス
+     * @param methodName
+     *            呼び出すメソッド名
+     * @param args
+     *            メソッドの引数
+     */
+    public S2ComponentModel(Class<?> componentClass, String methodName,
+            Object... args) {
+        super(componentClass);
+        this.methodName = methodName;
+        this.args = args;
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param componentName
+     *            S2Containerからコンポーネントを取り出すためのコンポーネント名
+     * @param methodName
+     *            呼び出すメソッド名
+     * @param args
+     *            メソッドの引数
+     */
+    public S2ComponentModel(String componentName, String methodName,
+            Object... args) {
+        super(componentName);
+        this.methodName = methodName;
+        this.args = args;
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    protected T load(Object component) {
+        return (T) BeanDescFactory.getBeanDesc(component.getClass()).invoke(
+                component, methodName, args);
+    }
+}
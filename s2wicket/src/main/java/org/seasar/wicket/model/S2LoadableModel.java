@@ -0,0 +1,96 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.model;
+
+import org.seasar.wicket.S2ContainerRegistry;
+
+/**
+ * S2Containerのコンポーネントから値を読み込むデタッチ可能なモデル。
+ * <p>
+ * モデルが保持するのはS2Containerからコンポーネントを取り出すためのキーのみで、
+ * コンポーネントそのものや読み込んだ値はページと一緒にシリアライズされません。
+ * 読み込んだ値はリクエストの間キャッシュされ、デタッチ時に破棄されます。
+ * {@link #prefetch()}で別スレッドでの読み込みを開始することもできます。
+ * </p>
+ *
+ * <pre>
+ * new S2LoadableModel&lt;BoardLogic, List&lt;Message&gt;&gt;(BoardLogic.class) {
+ *     protected List&lt;Message&gt; load(BoardLogic boardLogic) {
+ *         return boardLogic.getMessages();
+ *     }
+ * };
+ * </pre>
+ *
+ * @param <C>
+ *            S2Containerのコンポーネントの型
+ * @param <T>
+ *            モデルの値の型
+ */
+public abstract class S2LoadableModel<C, T> extends PrefetchableModel<T> {
+    private static final long serialVersionUID = 1L;
+
+    /** S2Containerからコンポーネントを取り出すためのキー（クラスまたはコンポーネント名） */
+    private final Object key;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param componentClass
+     *            S2Containerからコンポーネントを取り出すためのクラス
+     */
+    public S2LoadableModel(Class<? extends C> componentClass) {
+        this.key = componentClass;
+    }
+
+    /**
+     * コンストラクタ。
+     *
+     * @param componentName
+     *            S2Containerからコンポーネントを取り出すためのコンポーネント名
+     */
+    public S2LoadableModel(String componentName) {
+        this.key = componentName;
+    }
+
+    @Override
+    protected final T fetch() {
+        return load(getComponent());
+    }
+
+    /**
+     * S2Containerのコンポーネントから値を読み込みます。
+     *
+     * @param component
+     *            S2Containerから取り出したコンポーネント
+     * @return モデルの値
+     */
+    protected abstract T load(C component);
+
+    /**
+     * S2Containerからコンポーネントを取り出します。
+     */
+    @SuppressWarnings("unchecked")
+    protected C getComponent() {
+        return (C) S2ContainerRegistry.getContainer().getComponent(key);
+    }
+
+    /**
+     * S2Containerからコンポーネントを取り出すためのキーを取得します。
+     */
+    public Object getKey() {
+        return key;
+    }
+}
@@ -0,0 +1,69 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.pagestore;
+
+import org.apache.wicket.pageStore.IDataStore;
+
+/**
+ * 格納されたページのバイト数を{@link PageStoreAccounting}に記録する{@link IDataStore}。
+ * <p>
+ * セッションごとの上限を超えた場合は、古いページを委譲先のストアから破棄します。
+ * セッションが破棄された時にはページストアから{@link #removeData(String)}が呼ばれるため、集計からも取り除かれます。
+ * </p>
+ */
+public class AccountingDataStore implements IDataStore {
+    private final IDataStore delegate;
+    private final PageStoreAccounting accounting;
+
+    public AccountingDataStore(IDataStore delegate,
+            PageStoreAccounting accounting) {
+        this.delegate = delegate;
+        this.accounting = accounting;
+    }
+
+    public byte[] getData(String sessionId, int id) {
+        return delegate.getData(sessionId, id);
+    }
+
+    public void removeData(String sessionId, int id) {
+        accounting.pageRemoved(sessionId, id);
+        delegate.removeData(sessionId, id);
+    }
+
+    public void removeData(String sessionId) {
+        accounting.sessionRemoved(sessionId);
+        delegate.removeData(sessionId);
+    }
+
+    public void storeData(String sessionId, int id, byte[] data) {
+        delegate.storeData(sessionId, id, data);
+        for (Integer evicted : accounting.pageStored(sessionId, id, data)) {
+            delegate.removeData(sessionId, evicted);
+        }
+    }
+
+    public void destroy() {
+        delegate.destroy();
+    }
+
+    public boolean isReplicated() {
+        return delegate.isReplicated();
+    }
+
+    public boolean canBeAsynchronous() {
+        return delegate.canBeAsynchronous();
+    }
+}
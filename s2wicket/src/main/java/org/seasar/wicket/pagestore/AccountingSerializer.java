@@ -0,0 +1,49 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.pagestore;
+
+import org.apache.wicket.Page;
+import org.apache.wicket.serialize.ISerializer;
+
+/**
+ * シリアライズしたページのクラスを{@link PageStoreAccounting}に記録する{@link ISerializer}。
+ * <p>
+ * ページストアに渡されるのはバイト列のみのため、ページのクラスはシリアライズしたバイト列とともに記録しておき、
+ * 格納時に同じバイト列から求めます。
+ * </p>
+ */
+public class AccountingSerializer implements ISerializer {
+    private final ISerializer delegate;
+    private final PageStoreAccounting accounting;
+
+    public AccountingSerializer(ISerializer delegate,
+            PageStoreAccounting accounting) {
+        this.delegate = delegate;
+        this.accounting = accounting;
+    }
+
+    public byte[] serialize(Object object) {
+        byte[] data = delegate.serialize(object);
+        if (data != null && object instanceof Page) {
+            accounting.pageSerialized(data, object.getClass().getName());
+        }
+        return data;
+    }
+
+    public Object deserialize(byte[] data) {
+        return delegate.deserialize(data);
+    }
+}
@@ -0,0 +1,394 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.pagestore;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.apache.wicket.pageStore.IDataStore;
+import org.seasar.wicket.util.JmxUtil;
+
+/**
+ * シリアライズされたページをバイト数で制限してメモリに保持する{@link IDataStore}。
+ * <p>
+ * Wicketのページストアのメモリ上のキャッシュはページ数で制限されるため、ページの大きさが大きく異なると、
+ * 小さなページが追い出されたり、大きなページがメモリを占有したりします。
+ * このストアは委譲先のストア（DiskDataStore）の手前で、全体のバイト数の上限と、
+ * セッションごとのバイト数の上限の範囲でページを保持し、戻るボタンやAjaxのリクエストでのディスクの読み込みを減らします。
+ * </p>
+ * <p>
+ * ページは複数のセグメントに分けて保持し、セグメントごとにロックとLRUの順序を持ちます。
+ * 全体の上限はセグメントに均等に割り当てられます。
+ * セッションごとの上限を超える場合は、戻るボタンやAjaxで使われる新しいページを保持できるよう、
+ * そのセッションの最も使われていないページから破棄します。上限より大きいページはメモリに保持しません。
+ * </p>
+ * <p>
+ * S2WicketFilterの初期化パラメータpageCacheMaxBytesを指定すると有効になり、
+ * JMXに「org.seasar.wicket:type=PageCache,name=フィルタ名」として登録されます。
+ * </p>
+ */
+public class MemoryCachingDataStore implements IDataStore, MemoryCachingDataStoreMBean {
+    private final IDataStore delegate;
+    private final Segment[] segments;
+    private final long maxBytesPerSession;
+
+    private final ConcurrentMap<String, SessionPages> sessions =
+            new ConcurrentHashMap<String, SessionPages>();
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private ObjectName objectName;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param delegate
+     *            委譲先のストア
+     * @param maxBytes
+     *            メモリに保持するバイト数の上限
+     * @param maxBytesPerSession
+     *            セッションごとにメモリに保持するバイト数の上限
+     * @param segmentCount
+     *            セグメントの数
+     */
+    public MemoryCachingDataStore(IDataStore delegate, long maxBytes,
+            long maxBytesPerSession, int segmentCount) {
+        this.delegate = delegate;
+        this.maxBytesPerSession = maxBytesPerSession;
+        this.segments = new Segment[Math.max(1, segmentCount)];
+        for (int i = 0; i < segments.length; ++i) {
+            segments[i] = new Segment(maxBytes / segments.length);
+        }
+    }
+
+    public byte[] getData(String sessionId, int id) {
+        PageKey key = new PageKey(sessionId, id);
+        Segment segment = segmentFor(key);
+        byte[] data = segment.get(key);
+        if (data != null) {
+            hitCount.incrementAndGet();
+            SessionPages pages = sessions.get(sessionId);
+            if (pages != null) {
+                pages.touch(id);
+            }
+            return data;
+        }
+        missCount.incrementAndGet();
+        data = delegate.getData(sessionId, id);
+        if (data != null) {
+            cache(segment, key, data);
+        }
+        return data;
+    }
+
+    public void removeData(String sessionId, int id) {
+        PageKey key = new PageKey(sessionId, id);
+        segmentFor(key).remove(key);
+        delegate.removeData(sessionId, id);
+    }
+
+    public void removeData(String sessionId) {
+        for (Segment segment : segments) {
+            segment.removeSession(sessionId);
+        }
+        // セグメントから取り除いた後に破棄し、同時に格納されたページの計上が狂わないようにする
+        sessions.remove(sessionId);
+        delegate.removeData(sessionId);
+    }
+
+    public void storeData(String sessionId, int id, byte[] data) {
+        PageKey key = new PageKey(sessionId, id);
+        Segment segment = segmentFor(key);
+        // 古いページが残らないよう先に取り除く
+        segment.remove(key);
+        cache(segment, key, data);
+        delegate.storeData(sessionId, id, data);
+    }
+
+    public void destroy() {
+        unregister();
+        for (Segment segment : segments) {
+            segment.clear();
+        }
+        sessions.clear();
+        delegate.destroy();
+    }
+
+    public boolean isReplicated() {
+        return delegate.isReplicated();
+    }
+
+    public boolean canBeAsynchronous() {
+        return delegate.canBeAsynchronous();
+    }
+
+    private void cache(Segment segment, PageKey key, byte[] data) {
+        if (data.length > maxBytesPerSession) {
+            return;
+        }
+        SessionPages pages = sessions.get(key.sessionId);
+        if (pages == null) {
+            SessionPages created = new SessionPages();
+            pages = sessions.putIfAbsent(key.sessionId, created);
+            if (pages == null) {
+                pages = created;
+            }
+        }
+        // セッションの上限を超える分は、そのセッションの最も使われていないページから破棄する
+        // （セグメントのロックを持ったままSessionPagesをロックするため、ここではその逆順にしない）
+        for (Map.Entry<Integer, byte[]> victim : pages.add(key.id, data,
+                maxBytesPerSession)) {
+            PageKey victimKey = new PageKey(key.sessionId, victim.getKey());
+            if (segmentFor(victimKey).remove(victimKey, victim.getValue())) {
+                evictionCount.incrementAndGet();
+            }
+        }
+        segment.put(key, data);
+    }
+
+    private Segment segmentFor(PageKey key) {
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    private void released(PageKey key, byte[] data) {
+        SessionPages pages = sessions.get(key.sessionId);
+        if (pages != null) {
+            pages.remove(key.id, data);
+        }
+    }
+
+    public long getBytes() {
+        long bytes = 0;
+        for (Segment segment : segments) {
+            bytes += segment.getBytes();
+        }
+        return bytes;
+    }
+
+    public int getPageCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.size();
+        }
+        return count;
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getMaxBytesPerSession() {
+        return maxBytesPerSession;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public double getHitRatio() {
+        long hits = hitCount.get();
+        long total = hits + missCount.get();
+        return total > 0 ? (double) hits / total : 0.0;
+    }
+
+    /**
+     * MBeanServerに登録します。
+     */
+    public void register(String name) {
+        objectName = JmxUtil.register(this, "PageCache", name);
+    }
+
+    /**
+     * MBeanServerから登録を解除します。
+     */
+    public void unregister() {
+        JmxUtil.unregister(objectName);
+        objectName = null;
+    }
+
+    private final class Segment {
+        private final long maxBytes;
+        private final LinkedHashMap<PageKey, byte[]> pages =
+                new LinkedHashMap<PageKey, byte[]>(16, 0.75f, true);
+        private long bytes;
+
+        Segment(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized byte[] get(PageKey key) {
+            return pages.get(key);
+        }
+
+        synchronized void put(PageKey key, byte[] data) {
+            if (data.length > maxBytes) {
+                released(key, data);
+                return;
+            }
+            byte[] old = pages.put(key, data);
+            if (old != null) {
+                bytes -= old.length;
+                released(key, old);
+            }
+            bytes += data.length;
+            Iterator<Map.Entry<PageKey, byte[]>> it = pages.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<PageKey, byte[]> eldest = it.next();
+                it.remove();
+                bytes -= eldest.getValue().length;
+                released(eldest.getKey(), eldest.getValue());
+                evictionCount.incrementAndGet();
+            }
+        }
+
+        synchronized void remove(PageKey key) {
+            byte[] old = pages.remove(key);
+            if (old != null) {
+                bytes -= old.length;
+                released(key, old);
+            }
+        }
+
+        /*
+         * 保持しているページがdataと同じ場合のみ取り除きます。
+         */
+        synchronized boolean remove(PageKey key, byte[] data) {
+            if (pages.get(key) != data) {
+                return false;
+            }
+            pages.remove(key);
+            bytes -= data.length;
+            released(key, data);
+            return true;
+        }
+
+        synchronized void removeSession(String sessionId) {
+            Iterator<Map.Entry<PageKey, byte[]>> it = pages.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<PageKey, byte[]> entry = it.next();
+                if (entry.getKey().sessionId.equals(sessionId)) {
+                    it.remove();
+                    bytes -= entry.getValue().length;
+                    released(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+
+        synchronized void clear() {
+            pages.clear();
+            bytes = 0;
+        }
+
+        synchronized long getBytes() {
+            return bytes;
+        }
+
+        synchronized int size() {
+            return pages.size();
+        }
+    }
+
+    /*
+     * セッションがメモリに保持しているページとその合計のバイト数。使われた順に並べる。
+     * ページは配列の同一性で比較し、置き換えられた古いページの解放で新しいページの計上を取り消さないようにする。
+     */
+    private static final class SessionPages {
+        private final LinkedHashMap<Integer, byte[]> pages =
+                new LinkedHashMap<Integer, byte[]>(16, 0.75f, true);
+        private long bytes;
+
+        /*
+         * ページを計上し、上限を超える分の最も使われていないページを計上から外して返します。
+         */
+        synchronized List<Map.Entry<Integer, byte[]>> add(int id, byte[] data,
+                long maxBytes) {
+            byte[] old = pages.put(id, data);
+            if (old != null) {
+                bytes -= old.length;
+            }
+            bytes += data.length;
+            List<Map.Entry<Integer, byte[]>> victims =
+                    new ArrayList<Map.Entry<Integer, byte[]>>();
+            Iterator<Map.Entry<Integer, byte[]>> it = pages.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Map.Entry<Integer, byte[]> eldest = it.next();
+                if (eldest.getKey().intValue() == id) {
+                    continue;
+                }
+                victims.add(new AbstractMap.SimpleEntry<Integer, byte[]>(eldest));
+                it.remove();
+                bytes -= eldest.getValue().length;
+            }
+            return victims;
+        }
+
+        synchronized void touch(int id) {
+            pages.get(id);
+        }
+
+        synchronized void remove(int id, byte[] data) {
+            if (pages.get(id) == data) {
+                pages.remove(id);
+                bytes -= data.length;
+            }
+        }
+    }
+
+    private static final class PageKey {
+        final String sessionId;
+        final int id;
+
+        PageKey(String sessionId, int id) {
+            this.sessionId = sessionId;
+            this.id = id;
+        }
+
+        @Override
+        public int hashCode() {
+            return sessionId.hashCode() * 31 + id;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof PageKey)) {
+                return false;
+            }
+            PageKey other = (PageKey) obj;
+            return id == other.id && sessionId.equals(other.sessionId);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.pagestore;
+
+/**
+ * {@link MemoryCachingDataStore}をJMXで公開するためのインタフェース。
+ */
+public interface MemoryCachingDataStoreMBean {
+    /**
+     * メモリに保持しているページのバイト数の合計を返します。
+     */
+    long getBytes();
+
+    /**
+     * メモリに保持しているページの数を返します。
+     */
+    int getPageCount();
+
+    /**
+     * メモリにページを保持しているセッションの数を返します。
+     */
+    int getSessionCount();
+
+    long getMaxBytesPerSession();
+
+    long getHitCount();
+
+    long getMissCount();
+
+    /**
+     * 上限を超えたためにメモリから破棄したページの数を返します。
+     */
+    long getEvictionCount();
+
+    double getHitRatio();
+}
@@ -0,0 +1,302 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.pagestore;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.ObjectName;
+
+import org.seasar.wicket.util.JmxUtil;
+
+/**
+ * ページストアに格納されたページのバイト数を、セッションごと、ページクラスごとに集計するクラス。
+ * <p>
+ * {@link AccountingSerializer}がシリアライズしたバイト列とページのクラスを、
+ * {@link AccountingDataStore}が格納されたバイト列を記録し、同じバイト列からページのクラスを求めます。
+ * シリアライズしたバイト列は弱参照で保持するため、格納されなかったページの記録は残りません。
+ * セッションごとの上限（{@link #setMaxBytesPerSession(long)}）を超えた場合は、
+ * そのセッションで古く格納されたページから破棄します。最後に格納されたページは破棄しません。
+ * </p>
+ * <p>
+ * JMXでは、セッションIDは先頭の数文字のみを公開します。
+ * </p>
+ */
+public class PageStoreAccounting implements PageStoreAccountingMBean {
+    /** クラスがわからないページのクラス名 */
+    private static final String UNKNOWN_CLASS = "(unknown)";
+
+    private final ConcurrentMap<String, SessionUsage> sessions =
+            new ConcurrentHashMap<String, SessionUsage>();
+
+    private final ConcurrentMap<String, AtomicLong> pageClassBytes =
+            new ConcurrentHashMap<String, AtomicLong>();
+
+    /** シリアライズしたバイト列（同一性で比較）とページのクラス */
+    private final Map<byte[], String> serializedClasses =
+            Collections.synchronizedMap(new WeakHashMap<byte[], String>());
+
+    private final AtomicLong totalBytes = new AtomicLong();
+    private final AtomicLong evictedPages = new AtomicLong();
+
+    private volatile long maxBytesPerSession;
+    private volatile int topCount = 10;
+
+    private ObjectName objectName;
+
+    /**
+     * ページをシリアライズしたバイト列とそのクラスを記録します。
+     */
+    public void pageSerialized(byte[] data, String className) {
+        serializedClasses.put(data, className);
+    }
+
+    /**
+     * ページが格納されたことを記録し、上限を超えたために破棄すべきページのIDを返します。
+     *
+     * @param data
+     *            格納されたバイト列（{@link #pageSerialized(byte[], String)}で記録したものであればクラスがわかります）
+     */
+    public List<Integer> pageStored(String sessionId, int pageId, byte[] data) {
+        String className = serializedClasses.remove(data);
+        int bytes = data.length;
+        SessionUsage usage = getSessionUsage(sessionId);
+        List<Integer> evicted = null;
+        synchronized (usage) {
+            release(usage, usage.pages.remove(pageId));
+            StoredPage page =
+                    new StoredPage(className != null ? className
+                            : UNKNOWN_CLASS, bytes);
+            usage.pages.put(pageId, page);
+            usage.bytes += bytes;
+            totalBytes.addAndGet(bytes);
+            getPageClassBytes(page.className).addAndGet(bytes);
+
+            long max = maxBytesPerSession;
+            if (max > 0) {
+                Iterator<Map.Entry<Integer, StoredPage>> it =
+                        usage.pages.entrySet().iterator();
+                while (usage.bytes > max && usage.pages.size() > 1
+                        && it.hasNext()) {
+                    Map.Entry<Integer, StoredPage> eldest = it.next();
+                    it.remove();
+                    release(usage, eldest.getValue());
+                    if (evicted == null) {
+                        evicted = new ArrayList<Integer>();
+                    }
+                    evicted.add(eldest.getKey());
+                }
+            }
+        }
+        if (evicted == null) {
+            return Collections.emptyList();
+        }
+        evictedPages.addAndGet(evicted.size());
+        return evicted;
+    }
+
+    /**
+     * ページが破棄されたことを記録します。
+     */
+    public void pageRemoved(String sessionId, int pageId) {
+        SessionUsage usage = sessions.get(sessionId);
+        if (usage != null) {
+            synchronized (usage) {
+                release(usage, usage.pages.remove(pageId));
+            }
+        }
+    }
+
+    /**
+     * セッションのすべてのページが破棄されたことを記録します。
+     */
+    public void sessionRemoved(String sessionId) {
+        SessionUsage usage = sessions.remove(sessionId);
+        if (usage != null) {
+            synchronized (usage) {
+                for (StoredPage page : usage.pages.values()) {
+                    release(usage, page);
+                }
+                usage.pages.clear();
+            }
+        }
+    }
+
+    public long getTotalBytes() {
+        return totalBytes.get();
+    }
+
+    public int getSessionCount() {
+        return sessions.size();
+    }
+
+    public long getEvictedPages() {
+        return evictedPages.get();
+    }
+
+    public String[] getTopSessions() {
+        List<Map.Entry<String, Long>> entries =
+                new ArrayList<Map.Entry<String, Long>>();
+        Map<String, Integer> pageCounts = new HashMap<String, Integer>();
+        for (Map.Entry<String, SessionUsage> entry : sessions.entrySet()) {
+            SessionUsage usage = entry.getValue();
+            synchronized (usage) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(
+                        entry.getKey(), usage.bytes));
+                pageCounts.put(entry.getKey(), usage.pages.size());
+            }
+        }
+        List<Map.Entry<String, Long>> top = top(entries);
+        String[] result = new String[top.size()];
+        for (int i = 0; i < result.length; ++i) {
+            Map.Entry<String, Long> entry = top.get(i);
+            result[i] =
+                    maskSessionId(entry.getKey()) + " bytes="
+                            + entry.getValue() + " pages="
+                            + pageCounts.get(entry.getKey());
+        }
+        return result;
+    }
+
+    public String[] getTopPageClasses() {
+        List<Map.Entry<String, Long>> entries =
+                new ArrayList<Map.Entry<String, Long>>();
+        for (Map.Entry<String, AtomicLong> entry : pageClassBytes.entrySet()) {
+            entries.add(new AbstractMap.SimpleImmutableEntry<String, Long>(
+                    entry.getKey(), entry.getValue().get()));
+        }
+        List<Map.Entry<String, Long>> top = top(entries);
+        String[] result = new String[top.size()];
+        for (int i = 0; i < result.length; ++i) {
+            Map.Entry<String, Long> entry = top.get(i);
+            result[i] = entry.getKey() + " bytes=" + entry.getValue();
+        }
+        return result;
+    }
+
+    public long getMaxBytesPerSession() {
+        return maxBytesPerSession;
+    }
+
+    /**
+     * セッションごとに格納するバイト数の上限を設定します。0以下の場合は制限しません。
+     */
+    public void setMaxBytesPerSession(long maxBytesPerSession) {
+        this.maxBytesPerSession = maxBytesPerSession;
+    }
+
+    public int getTopCount() {
+        return topCount;
+    }
+
+    /**
+     * JMXで公開する上位の件数を設定します。デフォルトは10です。
+     */
+    public void setTopCount(int topCount) {
+        this.topCount = topCount;
+    }
+
+    /**
+     * MBeanServerに登録します。
+     */
+    public void register(String name) {
+        objectName = JmxUtil.register(this, "PageStoreAccounting", name);
+    }
+
+    /**
+     * MBeanServerから登録を解除します。
+     */
+    public void unregister() {
+        JmxUtil.unregister(objectName);
+        objectName = null;
+    }
+
+    private void release(SessionUsage usage, StoredPage page) {
+        if (page != null) {
+            usage.bytes -= page.bytes;
+            totalBytes.addAndGet(-page.bytes);
+            getPageClassBytes(page.className).addAndGet(-page.bytes);
+        }
+    }
+
+    private List<Map.Entry<String, Long>> top(
+            List<Map.Entry<String, Long>> entries) {
+        Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+            public int compare(Map.Entry<String, Long> o1,
+                    Map.Entry<String, Long> o2) {
+                return o2.getValue().compareTo(o1.getValue());
+            }
+        });
+        return entries.subList(0, Math.min(topCount, entries.size()));
+    }
+
+    private SessionUsage getSessionUsage(String sessionId) {
+        SessionUsage usage = sessions.get(sessionId);
+        if (usage == null) {
+            SessionUsage created = new SessionUsage();
+            usage = sessions.putIfAbsent(sessionId, created);
+            if (usage == null) {
+                usage = created;
+            }
+        }
+        return usage;
+    }
+
+    private AtomicLong getPageClassBytes(String className) {
+        AtomicLong bytes = pageClassBytes.get(className);
+        if (bytes == null) {
+            AtomicLong created = new AtomicLong();
+            bytes = pageClassBytes.putIfAbsent(className, created);
+            if (bytes == null) {
+                bytes = created;
+            }
+        }
+        return bytes;
+    }
+
+    private static String maskSessionId(String sessionId) {
+        return sessionId.length() > 8 ? sessionId.substring(0, 8) + "..."
+                : sessionId;
+    }
+
+    private static class SessionUsage {
+        long bytes;
+        /** 格納された順のページ */
+        final LinkedHashMap<Integer, StoredPage> pages =
+                new LinkedHashMap<Integer, StoredPage>();
+    }
+
+    private static class StoredPage {
+        final String className;
+        final int bytes;
+
+        StoredPage(String className, int bytes) {
+            this.className = className;
+            this.bytes = bytes;
+        }
+    }
+}
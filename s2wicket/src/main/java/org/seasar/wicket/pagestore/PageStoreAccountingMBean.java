@@ -0,0 +1,54 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.pagestore;
+
+/**
+ * {@link PageStoreAccounting}をJMXで公開するためのインタフェース。
+ */
+public interface PageStoreAccountingMBean {
+    /**
+     * ページストアに格納されているページのバイト数の合計を返します。
+     */
+    long getTotalBytes();
+
+    /**
+     * ページを格納しているセッションの数を返します。
+     */
+    int getSessionCount();
+
+    /**
+     * 制限を超えたために破棄したページの数を返します。
+     */
+    long getEvictedPages();
+
+    /**
+     * 格納しているバイト数が多いセッションを上位から返します。
+     */
+    String[] getTopSessions();
+
+    /**
+     * 格納しているバイト数が多いページクラスを上位から返します。
+     */
+    String[] getTopPageClasses();
+
+    long getMaxBytesPerSession();
+
+    void setMaxBytesPerSession(long maxBytesPerSession);
+
+    int getTopCount();
+
+    void setTopCount(int topCount);
+}
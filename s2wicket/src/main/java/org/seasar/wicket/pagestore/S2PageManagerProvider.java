@@ -0,0 +1,85 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.pagestore;
+
+import org.apache.wicket.Application;
+import org.apache.wicket.DefaultPageManagerProvider;
+import org.apache.wicket.pageStore.IDataStore;
+
+/**
+ * S2Wicketのページストアの機能を組み込む{@link org.apache.wicket.page.IPageManagerProvider}。
+ * <p>
+ * Wicket標準のデータストア（DiskDataStore）を、設定に応じて{@link MemoryCachingDataStore}と
+ * {@link AccountingDataStore}で包みます。集計による破棄がメモリ上のページにも及ぶよう、集計を外側にします。
+ * S2WicketFilterが初期化パラメータに応じて設定します。
+ * </p>
+ */
+public class S2PageManagerProvider extends DefaultPageManagerProvider {
+    private final PageStoreAccounting accounting;
+
+    private long pageCacheMaxBytes;
+    private long pageCacheMaxBytesPerSession;
+    private int pageCacheSegments = 16;
+    private final String name;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param application
+     *            アプリケーション
+     * @param accounting
+     *            ページストアの集計。集計しない場合はnull
+     */
+    public S2PageManagerProvider(Application application,
+            PageStoreAccounting accounting) {
+        super(application);
+        this.accounting = accounting;
+        this.name = application.getName();
+    }
+
+    /**
+     * ページをバイト数で制限してメモリに保持するよう設定します。
+     *
+     * @param maxBytes
+     *            メモリに保持するバイト数の上限。0以下の場合は保持しない
+     * @param maxBytesPerSession
+     *            セッションごとにメモリに保持するバイト数の上限
+     * @param segments
+     *            セグメントの数
+     */
+    public void setPageCache(long maxBytes, long maxBytesPerSession,
+            int segments) {
+        this.pageCacheMaxBytes = maxBytes;
+        this.pageCacheMaxBytesPerSession = maxBytesPerSession;
+        this.pageCacheSegments = segments;
+    }
+
+    @Override
+    protected IDataStore newDataStore() {
+        IDataStore dataStore = super.newDataStore();
+        if (pageCacheMaxBytes > 0) {
+            MemoryCachingDataStore pageCache =
+                    new MemoryCachingDataStore(dataStore, pageCacheMaxBytes,
+                            pageCacheMaxBytesPerSession, pageCacheSegments);
+            pageCache.register(name);
+            dataStore = pageCache;
+        }
+        if (accounting != null) {
+            dataStore = new AccountingDataStore(dataStore, accounting);
+        }
+        return dataStore;
+    }
+}
@@ -0,0 +1,209 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.profiling;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 1つのリクエストの処理時間の内訳を記録するクラス。
+ * <p>
+ * S2WicketFilterが初期化パラメータslowRequestThresholdの指定に応じてリクエストごとに作成し、
+ * スレッドに関連づけます。以下のフェーズの時間と回数、およびクラスごとの時間を記録し、
+ * リクエストの処理時間が閾値以上の場合にのみ、1行のログとして出力します。
+ * </p>
+ * <dl>
+ * <dt>injection</dt>
+ * <dd>ComponentInjectionListenerによる注入</dd>
+ * <dt>locate</dt>
+ * <dd>S2ProxyTargetLocatorによるプロクシの実体の取得</dd>
+ * <dt>component</dt>
+ * <dd>{@link org.seasar.wicket.aop.interceptors.RequestTraceInterceptor}を適用したコンポーネントの呼び出し</dd>
+ * <dt>serialize</dt>
+ * <dd>{@link TracingSerializer}によるページのシリアライズ</dd>
+ * </dl>
+ * <p>
+ * フェーズの時間は入れ子になった呼び出しを含めず、最も外側の呼び出しのみを数えます。
+ * クラスごとの時間はそれぞれの呼び出しの時間です（ロジックから呼び出したDaoの時間はロジックにも含まれます）。
+ * 記録していない時間（主にWicketのレンダリング）はotherとして出力します。
+ * 記録していないリクエストでは、各フェーズの計測はThreadLocalの参照のみで終わります。
+ * </p>
+ */
+public final class RequestTrace {
+    private static final Logger logger = LoggerFactory.getLogger(RequestTrace.class);
+
+    /** 注入のフェーズ */
+    public static final int INJECTION = 0;
+    /** プロクシの実体の取得のフェーズ */
+    public static final int LOCATE = 1;
+    /** コンポーネントの呼び出しのフェーズ */
+    public static final int COMPONENT = 2;
+    /** シリアライズのフェーズ */
+    public static final int SERIALIZE = 3;
+
+    /** 記録していない場合に{@link #enter(int)}が返す値 */
+    public static final long NOT_TRACED = Long.MIN_VALUE;
+
+    private static final String[] PHASE_NAMES = { "injection", "locate",
+            "component", "serialize" };
+
+    /** 出力するクラスの数 */
+    private static final int TOP_CLASSES = 5;
+
+    private static final ThreadLocal<RequestTrace> current =
+            new ThreadLocal<RequestTrace>();
+
+    private final long start = System.nanoTime();
+    private final long[] nanos = new long[PHASE_NAMES.length];
+    private final int[] counts = new int[PHASE_NAMES.length];
+    private final int[] depths = new int[PHASE_NAMES.length];
+    private Map<Class<?>, long[]> classes;
+
+    private RequestTrace() {
+    }
+
+    /**
+     * 現在のスレッドで記録を開始します。
+     *
+     * @return 開始した記録。既に記録中の場合（インクルードなど）はnull
+     */
+    public static RequestTrace begin() {
+        if (current.get() != null) {
+            return null;
+        }
+        RequestTrace trace = new RequestTrace();
+        current.set(trace);
+        return trace;
+    }
+
+    /**
+     * 記録を終了し、処理時間が閾値以上であればログに出力します。
+     *
+     * @param label
+     *            ログに出力するリクエストの説明
+     * @param thresholdMillis
+     *            出力する処理時間の閾値（ミリ秒）
+     */
+    public void end(String label, long thresholdMillis) {
+        current.remove();
+        long total = System.nanoTime() - start;
+        if (total >= thresholdMillis * 1000000L && logger.isWarnEnabled()) {
+            logger.warn("[slow] {}", format(label, total));
+        }
+    }
+
+    /**
+     * フェーズの開始を記録します。
+     *
+     * @return {@link #exit(int, long, Class)}に渡す開始時刻。記録していない場合は{@link #NOT_TRACED}
+     */
+    public static long enter(int phase) {
+        RequestTrace trace = current.get();
+        if (trace == null) {
+            return NOT_TRACED;
+        }
+        trace.depths[phase]++;
+        return System.nanoTime();
+    }
+
+    /**
+     * フェーズの終了を記録します。
+     *
+     * @param phase
+     *            フェーズ
+     * @param start
+     *            {@link #enter(int)}が返した開始時刻
+     * @param clazz
+     *            時間を記録するクラス。記録しない場合はnull
+     */
+    public static void exit(int phase, long start, Class<?> clazz) {
+        if (start == NOT_TRACED) {
+            return;
+        }
+        RequestTrace trace = current.get();
+        if (trace == null) {
+            return;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (--trace.depths[phase] == 0) {
+            trace.nanos[phase] += elapsed;
+            trace.counts[phase]++;
+        }
+        if (clazz != null) {
+            trace.addClass(clazz, elapsed);
+        }
+    }
+
+    private void addClass(Class<?> clazz, long elapsed) {
+        if (classes == null) {
+            classes = new HashMap<Class<?>, long[]>();
+        }
+        long[] stat = classes.get(clazz);
+        if (stat == null) {
+            stat = new long[2];
+            classes.put(clazz, stat);
+        }
+        stat[0] += elapsed;
+        stat[1]++;
+    }
+
+    private String format(String label, long total) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(toMillis(total)).append("ms ").append(label);
+        long traced = 0;
+        for (int i = 0; i < PHASE_NAMES.length; ++i) {
+            sb.append(' ').append(PHASE_NAMES[i]).append('=')
+                    .append(toMillis(nanos[i])).append("ms/").append(counts[i]);
+            traced += nanos[i];
+        }
+        sb.append(" other=").append(toMillis(Math.max(0, total - traced))).append("ms");
+        if (classes != null) {
+            List<Map.Entry<Class<?>, long[]>> entries =
+                    new ArrayList<Map.Entry<Class<?>, long[]>>(classes.entrySet());
+            Collections.sort(entries, new Comparator<Map.Entry<Class<?>, long[]>>() {
+                public int compare(Map.Entry<Class<?>, long[]> o1,
+                        Map.Entry<Class<?>, long[]> o2) {
+                    long n1 = o1.getValue()[0];
+                    long n2 = o2.getValue()[0];
+                    return n1 > n2 ? -1 : n1 < n2 ? 1 : 0;
+                }
+            });
+            sb.append(" top=[");
+            for (int i = 0; i < entries.size() && i < TOP_CLASSES; ++i) {
+                Map.Entry<Class<?>, long[]> entry = entries.get(i);
+                if (i > 0) {
+                    sb.append(", ");
+                }
+                sb.append(entry.getKey().getName()).append('=')
+                        .append(toMillis(entry.getValue()[0])).append("ms/")
+                        .append(entry.getValue()[1]);
+            }
+            sb.append(']');
+        }
+        return sb.toString();
+    }
+
+    private static long toMillis(long nanos) {
+        return nanos / 1000000L;
+    }
+}
@@ -0,0 +1,48 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.profiling;
+
+import org.apache.wicket.serialize.ISerializer;
+
+/**
+ * シリアライズとデシリアライズの時間を{@link RequestTrace}に記録する{@link ISerializer}。
+ */
+public class TracingSerializer implements ISerializer {
+    private final ISerializer delegate;
+
+    public TracingSerializer(ISerializer delegate) {
+        this.delegate = delegate;
+    }
+
+    public byte[] serialize(Object object) {
+        long start = RequestTrace.enter(RequestTrace.SERIALIZE);
+        try {
+            return delegate.serialize(object);
+        } finally {
+            RequestTrace.exit(RequestTrace.SERIALIZE, start,
+                    object != null ? object.getClass() : null);
+        }
+    }
+
+    public Object deserialize(byte[] data) {
+        long start = RequestTrace.enter(RequestTrace.SERIALIZE);
+        try {
+            return delegate.deserialize(data);
+        } finally {
+            RequestTrace.exit(RequestTrace.SERIALIZE, start, null);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.reloading;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * リロード対象のクラスファイルの変更を検知するクラス。
+ * <p>
+ * ReloadingClassLoaderは読み込んだクラスファイルを定期的に確認しますが、
+ * このクラスはクラスパスのディレクトリをファイルシステムの通知で監視するため、
+ * クラスの数に関わらず確認のコストがかかりません。
+ * 短い間に続けて変更された場合（まとめてコンパイルされた場合など）は、
+ * 変更が止まってから一度だけリスナを呼び出します。
+ * </p>
+ * <p>
+ * 実装はJava 7以降のWatchServiceを使用します。実装クラスはsrc/main/java7にあり、
+ * JDK 7以上でビルドした場合のみjarに含まれます（pom.xmlのjava7プロファイル）。
+ * 実行環境がJava 6の場合や実装クラスが含まれていない場合は、
+ * {@link #newInstance(Collection, Collection, long, Runnable)}がnullを返します。
+ * </p>
+ */
+public abstract class ClassChangeWatcher {
+    private static final Logger logger =
+            LoggerFactory.getLogger(ClassChangeWatcher.class);
+
+    private static final String IMPLEMENTATION_CLASS_NAME =
+            "org.seasar.wicket.reloading.WatchServiceClassChangeWatcher";
+
+    private final List<Pattern> includes = new ArrayList<Pattern>();
+    private final List<Pattern> excludes = new ArrayList<Pattern>();
+
+    /**
+     * コンストラクタ。
+     *
+     * @param patterns
+     *            ReloadingClassLoaderのパターン（先頭が"-"のものは除外）
+     */
+    protected ClassChangeWatcher(Collection<String> patterns) {
+        for (String pattern : patterns) {
+            if (pattern.startsWith("-")) {
+                excludes.add(toRegex(pattern.substring(1)));
+            } else if (pattern.startsWith("+")) {
+                includes.add(toRegex(pattern.substring(1)));
+            } else {
+                includes.add(toRegex(pattern));
+            }
+        }
+    }
+
+    /**
+     * 使用できる実装を作成します。
+     *
+     * @param locations
+     *            監視するクラスパスの場所（ディレクトリ以外は無視されます）
+     * @param patterns
+     *            リロード対象のクラスのパターン
+     * @param quietPeriod
+     *            最後の変更からリスナを呼び出すまでの時間（ミリ秒）
+     * @param listener
+     *            変更時に監視スレッドから呼び出されるリスナ
+     * @return 作成した監視。WatchServiceが使用できない場合はnull
+     */
+    public static ClassChangeWatcher newInstance(Collection<URL> locations,
+            Collection<String> patterns, long quietPeriod, Runnable listener) {
+        try {
+            Class.forName("java.nio.file.WatchService");
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+        Class<?> clazz;
+        try {
+            clazz = Class.forName(IMPLEMENTATION_CLASS_NAME);
+        } catch (ClassNotFoundException e) {
+            // JDK 6でビルドされたため実装クラスが含まれていない
+            logger.debug("[reload] {} is not available.", IMPLEMENTATION_CLASS_NAME);
+            return null;
+        }
+        try {
+            return (ClassChangeWatcher) clazz.getConstructor(Collection.class,
+                    Collection.class, long.class, Runnable.class).newInstance(
+                    locations, patterns, quietPeriod, listener);
+        } catch (Exception e) {
+            logger.warn("[reload] failed to create class change watcher.", e);
+            return null;
+        }
+    }
+
+    /**
+     * 監視を開始します。
+     */
+    public abstract void start();
+
+    /**
+     * 監視を終了します。
+     */
+    public abstract void stop();
+
+    /**
+     * リロード対象のクラスかどうかを判定します。
+     */
+    protected boolean isTarget(String className) {
+        for (Pattern exclude : excludes) {
+            if (exclude.matcher(className).matches()) {
+                return false;
+            }
+        }
+        for (Pattern include : includes) {
+            if (include.matcher(className).matches()) {
+                return true;
+            }
+        }
+        return includes.isEmpty();
+    }
+
+    private static Pattern toRegex(String pattern) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < pattern.length(); ++i) {
+            char c = pattern.charAt(i);
+            if (c == '*') {
+                sb.append(".*");
+                while (i + 1 < pattern.length() && pattern.charAt(i + 1) == '*') {
+                    ++i;
+                }
+            } else {
+                sb.append(Pattern.quote(String.valueOf(c)));
+            }
+        }
+        return Pattern.compile(sb.toString());
+    }
+}
@@ -0,0 +1,134 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.repeater;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.seasar.wicket.cache.InvalidationTags;
+
+/**
+ * {@link S2DaoDataProvider}の行数とカーソル（ページ境界のキー）をアプリケーション全体で共有するS2コンポーネント。
+ * <p>
+ * ページのインスタンスごとにDataProviderを作成しても、行数の問い合わせとカーソルはDaoのクラスとメソッドごとに共有されます。
+ * 共有する値はDaoのタグ（{@link InvalidationTags#tagOf(Class)}）のバージョンに依存し、
+ * {@link org.seasar.wicket.aop.interceptors.ResultCacheInterceptor}を適用したDaoへの書き込みで破棄されます。
+ * </p>
+ * <p>
+ * S2Containerに登録されていない場合、S2DaoDataProviderはインスタンスごとに値を保持します。
+ * </p>
+ *
+ * <pre>
+ * &lt;component class=&quot;org.seasar.wicket.repeater.PagingCache&quot; /&gt;
+ * </pre>
+ */
+public class PagingCache {
+    private final ConcurrentMap<Object, Paging> pagings =
+            new ConcurrentHashMap<Object, Paging>();
+
+    /**
+     * キーに対応する値を取得します。ないか、タグが無効化されている場合は新しく作成します。
+     *
+     * @param key
+     *            Daoのクラスとメソッドを表すキー
+     * @param tag
+     *            Daoのタグ
+     * @param maxCursors
+     *            保持しておくカーソルの最大数
+     */
+    Paging get(Object key, String tag, int maxCursors) {
+        Paging paging = pagings.get(key);
+        if (paging != null && paging.version == InvalidationTags.version(tag)) {
+            return paging;
+        }
+        Paging created = new Paging(InvalidationTags.version(tag), maxCursors);
+        if (paging != null ? pagings.replace(key, paging, created)
+                : pagings.putIfAbsent(key, created) == null) {
+            return created;
+        }
+        // 他のスレッドが作成したものを使用する
+        Paging current = pagings.get(key);
+        return current != null ? current : created;
+    }
+
+    /**
+     * キーに対応する値を破棄します。
+     */
+    void remove(Object key) {
+        pagings.remove(key);
+    }
+
+    /**
+     * すべての値を破棄します。
+     */
+    public void clear() {
+        pagings.clear();
+    }
+
+    public int getSize() {
+        return pagings.size();
+    }
+
+    /*
+     * 1つのDaoの行数とカーソル。
+     */
+    static final class Paging {
+        final long version;
+        private final Map<Long, Serializable> cursors;
+        private long count = -1;
+        private long countExpiresAt;
+
+        Paging(long version, final int maxCursors) {
+            this.version = version;
+            this.cursors = new LinkedHashMap<Long, Serializable>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        Map.Entry<Long, Serializable> eldest) {
+                    return size() > maxCursors;
+                }
+            };
+        }
+
+        /*
+         * 有効な行数を返します。ないか期限切れの場合は-1を返します。
+         */
+        synchronized long getCount(long now) {
+            return count >= 0 && now < countExpiresAt ? count : -1;
+        }
+
+        synchronized void setCount(long count, long expiresAt) {
+            if (count != this.count) {
+                // 行の増減により位置がずれるのでカーソルを破棄する
+                cursors.clear();
+            }
+            this.count = count;
+            this.countExpiresAt = expiresAt;
+        }
+
+        synchronized Serializable getCursor(long position) {
+            return cursors.get(position);
+        }
+
+        synchronized void putCursor(long position, Serializable key) {
+            cursors.put(position, key);
+        }
+    }
+}
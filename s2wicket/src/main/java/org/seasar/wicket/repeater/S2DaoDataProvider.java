@@ -0,0 +1,279 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.repeater;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.wicket.markup.repeater.data.IDataProvider;
+import org.apache.wicket.model.IModel;
+import org.apache.wicket.model.Model;
+import org.seasar.framework.beans.MethodNotFoundRuntimeException;
+import org.seasar.framework.beans.factory.BeanDescFactory;
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.util.MethodUtil;
+import org.seasar.wicket.S2ContainerRegistry;
+import org.seasar.wicket.cache.InvalidationTags;
+import org.seasar.wicket.repeater.PagingCache.Paging;
+
+/**
+ * S2DaoのDaoからキーセット（シーク）方式でページングしながら読み込む{@link IDataProvider}。
+ * <p>
+ * {@code DataView}や{@code PagingNavigator}と組み合わせて使用します。
+ * OFFSETで読み飛ばす代わりに、直前のページの最後の行のキーより後ろの行を読み込むため、
+ * テーブルが大きくなってもページの読み込みにかかる時間とメモリは一定です。
+ * 1ページの読み込みは1回のクエリで行われ、LIMITで1ページ分の行数に制限されるため、
+ * jdbc.diconのfetchSizeがページの行数以上であれば1回のラウンドトリップで済みます。
+ * </p>
+ * <p>
+ * Daoには規約により以下のメソッドを定義します。メソッド名は変更可能です。
+ * </p>
+ * <dl>
+ * <dt>selectCount()</dt>
+ * <dd>全体の行数を返します。結果は{@link #setCountTimeToLive(long)}で指定した時間キャッシュされます。</dd>
+ * <dt>selectPage(K after, int limit)</dt>
+ * <dd>キーの順序で、afterより後ろの行を最大limit行返します。afterがnullの場合は先頭から返します。</dd>
+ * <dt>selectKeyAt(int offset)</dt>
+ * <dd>offset番目の行のキーを返します。PagingNavigatorで離れたページへ移動した場合に、
+ * キーのインデックスのみを使って位置を求めるために使用します。
+ * 読み飛ばす行を読み込まないよう必須としており、定義されていない場合はコンストラクタが例外を投げます。</dd>
+ * </dl>
+ * <p>
+ * 行数とカーソル（ページ境界のキー）は、S2Containerに登録された{@link PagingCache}で
+ * Daoのクラスとメソッドごとに共有されるため、ページのインスタンスごとにDataProviderを作成しても
+ * 行数の問い合わせは繰り返されません。Daoに{@link org.seasar.wicket.aop.interceptors.ResultCacheInterceptor}
+ * を適用しておくと、Daoへの書き込みで破棄されます。
+ * </p>
+ * <h4>Daoの例</h4>
+ *
+ * <pre>
+ * &#064;Sql(&quot;SELECT COUNT(*) FROM message&quot;)
+ * public int selectCount();
+ *
+ * &#064;Arguments( { &quot;after&quot;, &quot;limit&quot; })
+ * &#064;Sql(&quot;SELECT * FROM message /*IF after != null*&#47;WHERE id &lt; /*after*&#47;1/*END*&#47; ORDER BY id DESC LIMIT /*limit*&#47;10&quot;)
+ * public List&lt;Message&gt; selectPage(Long after, int limit);
+ *
+ * &#064;Arguments( { &quot;offset&quot; })
+ * &#064;Sql(&quot;SELECT id FROM message ORDER BY id DESC LIMIT 1 OFFSET /*offset*&#47;0&quot;)
+ * public Long selectKeyAt(int offset);
+ * </pre>
+ *
+ * @param <T>
+ *            行（エンティティ）の型
+ */
+public class S2DaoDataProvider<T extends Serializable> implements
+        IDataProvider<T> {
+    private static final long serialVersionUID = 1L;
+
+    /** 行数を取得するメソッド名のデフォルト値 */
+    public static final String DEFAULT_COUNT_METHOD_NAME = "selectCount";
+    /** ページを取得するメソッド名のデフォルト値 */
+    public static final String DEFAULT_PAGE_METHOD_NAME = "selectPage";
+    /** 指定位置のキーを取得するメソッド名のデフォルト値 */
+    public static final String DEFAULT_KEY_AT_METHOD_NAME = "selectKeyAt";
+
+    private final Class<?> daoClass;
+    private final String keyPropertyName;
+
+    private String countMethodName = DEFAULT_COUNT_METHOD_NAME;
+    private String pageMethodName = DEFAULT_PAGE_METHOD_NAME;
+    private String keyAtMethodName = DEFAULT_KEY_AT_METHOD_NAME;
+
+    /** 行数のキャッシュ時間（ミリ秒） */
+    private long countTimeToLive = 10000L;
+    /** 保持しておくカーソルの最大数 */
+    private int maxCursors = 64;
+
+    /** PagingCacheが登録されていない場合に使用する、このインスタンスだけのキャッシュ */
+    private transient PagingCache localCache;
+
+    /**
+     * コンストラクタ。
+     *
+     * @param daoClass
+     *            S2ContainerからDaoを取り出すためのクラス
+     * @param keyPropertyName
+     *            ページングに使用するキー（順序付けられた列）のプロパティ名
+     * @throws MethodNotFoundRuntimeException
+     *             DaoにselectKeyAt(int)が定義されていない場合
+     */
+    public S2DaoDataProvider(Class<?> daoClass, String keyPropertyName) {
+        this.daoClass = daoClass;
+        this.keyPropertyName = keyPropertyName;
+        checkKeyAtMethod(keyAtMethodName);
+    }
+
+    public Iterator<? extends T> iterator(long first, long count) {
+        Object dao = getDao();
+        Paging paging = getPaging();
+        int limit = (int) count;
+        List<T> rows;
+        Serializable cursor = first > 0 ? paging.getCursor(first) : null;
+        if (first == 0) {
+            rows = selectPage(dao, null, limit);
+        } else if (cursor != null) {
+            rows = selectPage(dao, cursor, limit);
+        } else {
+            // 読み飛ばす行を読み込まないよう、キーのみで位置を求める
+            Serializable after =
+                    (Serializable) invoke(dao, keyAtMethodName,
+                            (int) first - 1);
+            rows =
+                    after != null ? selectPage(dao, after, limit)
+                            : Collections.<T> emptyList();
+        }
+        if (!rows.isEmpty()) {
+            paging.putCursor(first + rows.size(),
+                    getKey(rows.get(rows.size() - 1)));
+        }
+        return rows.iterator();
+    }
+
+    public long size() {
+        Paging paging = getPaging();
+        long now = System.currentTimeMillis();
+        long count = paging.getCount(now);
+        if (count < 0) {
+            count = ((Number) invoke(getDao(), countMethodName)).longValue();
+            paging.setCount(count, now + countTimeToLive);
+        }
+        return count;
+    }
+
+    public IModel<T> model(T object) {
+        return new Model<T>(object);
+    }
+
+    public void detach() {
+    }
+
+    /**
+     * キャッシュしている行数とカーソルを破棄します。
+     * 通常はDaoへの書き込みで破棄されるため、呼び出す必要はありません。
+     */
+    public void invalidate() {
+        getPagingCache().remove(getPagingKey());
+    }
+
+    /**
+     * 行数のキャッシュ時間をミリ秒で設定します。0を指定するとキャッシュしません。
+     */
+    public S2DaoDataProvider<T> setCountTimeToLive(long countTimeToLive) {
+        this.countTimeToLive = countTimeToLive;
+        return this;
+    }
+
+    /**
+     * 保持しておくカーソル（ページ境界のキー）の最大数を設定します。
+     */
+    public S2DaoDataProvider<T> setMaxCursors(int maxCursors) {
+        this.maxCursors = maxCursors;
+        return this;
+    }
+
+    public S2DaoDataProvider<T> setCountMethodName(String countMethodName) {
+        this.countMethodName = countMethodName;
+        return this;
+    }
+
+    public S2DaoDataProvider<T> setPageMethodName(String pageMethodName) {
+        this.pageMethodName = pageMethodName;
+        return this;
+    }
+
+    public S2DaoDataProvider<T> setKeyAtMethodName(String keyAtMethodName) {
+        checkKeyAtMethod(keyAtMethodName);
+        this.keyAtMethodName = keyAtMethodName;
+        return this;
+    }
+
+    private void checkKeyAtMethod(String methodName) {
+        if (findMethod(methodName, 1) == null) {
+            throw new MethodNotFoundRuntimeException(daoClass, methodName,
+                    new Class<?>[] { int.class });
+        }
+    }
+
+    /**
+     * 行数とカーソルを共有するキャッシュを返します。
+     * デフォルトではS2Containerに登録されているPagingCache、登録されていなければこのインスタンスだけのキャッシュです。
+     */
+    protected PagingCache getPagingCache() {
+        S2Container container = S2ContainerRegistry.getContainer();
+        if (container.hasComponentDef(PagingCache.class)) {
+            return (PagingCache) container.getComponent(PagingCache.class);
+        }
+        if (localCache == null) {
+            localCache = new PagingCache();
+        }
+        return localCache;
+    }
+
+    private Paging getPaging() {
+        return getPagingCache().get(getPagingKey(),
+                InvalidationTags.tagOf(daoClass), maxCursors);
+    }
+
+    private Object getPagingKey() {
+        return Arrays.asList(daoClass.getName(), countMethodName,
+                pageMethodName, keyPropertyName);
+    }
+
+    /**
+     * S2ContainerからDaoを取り出します。
+     */
+    protected Object getDao() {
+        return S2ContainerRegistry.getContainer().getComponent(
+                daoClass);
+    }
+
+    /**
+     * 行からページングに使用するキーを取り出します。
+     */
+    protected Serializable getKey(T row) {
+        return (Serializable) BeanDescFactory.getBeanDesc(row.getClass()).getPropertyDesc(
+                keyPropertyName).getValue(row);
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<T> selectPage(Object dao, Serializable after, int limit) {
+        return (List<T>) invoke(dao, pageMethodName, after, limit);
+    }
+
+    private Object invoke(Object dao, String methodName, Object... args) {
+        Method method = findMethod(methodName, args.length);
+        if (method == null) {
+            throw new MethodNotFoundRuntimeException(daoClass, methodName,
+                    args);
+        }
+        return MethodUtil.invoke(method, dao, args);
+    }
+
+    private Method findMethod(String methodName, int arity) {
+        for (Method method : daoClass.getMethods()) {
+            if (method.getName().equals(methodName)
+                    && method.getParameterTypes().length == arity) {
+                return method;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,547 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.response;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+
+/**
+ * 本文を圧縮し、ETagによる条件付きGETに応答するレスポンス。
+ * <p>
+ * 本文は、ETagを付ける場合はその最大のバイト数まで、圧縮のみの場合は圧縮する最小のバイト数まで
+ * {@link BufferPool}のバッファに保持します。それを超えた時点でヘッダを確定し、以降は保持せずに
+ * （圧縮する場合は圧縮しながら）送信します。本文全体を保持するのはETagを計算する場合のみです。
+ * </p>
+ * <p>
+ * 圧縮するのは、状態が200で、Content-Encodingが設定されていないテキストのレスポンスです。
+ * ETagを付けるのは、GETで状態が200、Cache-Controlにno-storeがなく、ETagが設定されていないレスポンスです。
+ * 本文のMD5からETagを作り、If-None-Matchに一致すれば本文を送らずに304を返します。
+ * 圧縮が有効な場合、圧縮の対象になり得るレスポンスには、実際に圧縮したかどうかにかかわらず
+ * Vary: Accept-Encodingを設定します。
+ * フィルタの処理が終わった後に{@link #finish()}を、例外などで終わらなかった場合は
+ * {@link #abort()}を呼び出してください。
+ * </p>
+ */
+public class OptimizedResponse extends HttpServletResponseWrapper {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final ResponseOptimizer optimizer;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    /** 圧縮に使用するエンコーディング。圧縮しない場合はnull */
+    private final String encoding;
+
+    private int status = SC_OK;
+    private int contentLength = -1;
+    private String cacheControl;
+    private boolean hasETag;
+    private boolean hasContentEncoding;
+    /** sendErrorやsendRedirectが呼ばれ、本文を扱わない */
+    private boolean passThrough;
+    private boolean hasVary;
+
+    private BufferingOutputStream stream;
+    private PrintWriter writer;
+    /** 圧縮している場合のDeflater */
+    private Deflater deflater;
+
+    OptimizedResponse(ResponseOptimizer optimizer, HttpServletRequest request,
+            HttpServletResponse response, String encoding) {
+        super(response);
+        this.optimizer = optimizer;
+        this.request = request;
+        this.response = response;
+        this.encoding = encoding;
+    }
+
+    @Override
+    public void setStatus(int sc) {
+        status = sc;
+        super.setStatus(sc);
+    }
+
+    @SuppressWarnings("deprecation")
+    @Override
+    public void setStatus(int sc, String sm) {
+        status = sc;
+        super.setStatus(sc, sm);
+    }
+
+    @Override
+    public void sendError(int sc) throws IOException {
+        discard();
+        super.sendError(sc);
+    }
+
+    @Override
+    public void sendError(int sc, String msg) throws IOException {
+        discard();
+        super.sendError(sc, msg);
+    }
+
+    @Override
+    public void sendRedirect(String location) throws IOException {
+        discard();
+        super.sendRedirect(location);
+    }
+
+    @Override
+    public void setContentLength(int len) {
+        // 圧縮する場合は長さが変わるため、本文を送信する時に設定する
+        contentLength = len;
+    }
+
+    @Override
+    public void setHeader(String name, String value) {
+        if (interceptHeader(name, value, false)) {
+            super.setHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addHeader(String name, String value) {
+        if (interceptHeader(name, value, true)) {
+            super.addHeader(name, value);
+        }
+    }
+
+    @Override
+    public void setIntHeader(String name, int value) {
+        if (interceptHeader(name, String.valueOf(value), false)) {
+            super.setIntHeader(name, value);
+        }
+    }
+
+    @Override
+    public void addIntHeader(String name, int value) {
+        if (interceptHeader(name, String.valueOf(value), true)) {
+            super.addIntHeader(name, value);
+        }
+    }
+
+    /*
+     * 判定に使用するヘッダを記録し、そのまま設定する場合はtrueを返します。
+     */
+    private boolean interceptHeader(String name, String value, boolean add) {
+        if ("Content-Length".equalsIgnoreCase(name)) {
+            contentLength = Integer.parseInt(value.trim());
+            return false;
+        } else if ("Cache-Control".equalsIgnoreCase(name)) {
+            cacheControl =
+                    add && cacheControl != null ? cacheControl + "," + value
+                            : value;
+        } else if ("ETag".equalsIgnoreCase(name)) {
+            hasETag = true;
+        } else if ("Content-Encoding".equalsIgnoreCase(name)) {
+            hasContentEncoding = true;
+        }
+        return true;
+    }
+
+    @Override
+    public ServletOutputStream getOutputStream() throws IOException {
+        if (writer != null) {
+            throw new IllegalStateException("getWriter() has already been called.");
+        }
+        if (stream == null) {
+            stream = new BufferingOutputStream();
+        }
+        return stream;
+    }
+
+    @Override
+    public PrintWriter getWriter() throws IOException {
+        if (writer == null) {
+            if (stream != null) {
+                throw new IllegalStateException("getOutputStream() has already been called.");
+            }
+            stream = new BufferingOutputStream();
+            writer =
+                    new PrintWriter(new OutputStreamWriter(stream,
+                            getCharacterEncoding()));
+        }
+        return writer;
+    }
+
+    @Override
+    public void flushBuffer() throws IOException {
+        // 保持している間はヘッダを確定させない
+        if (writer != null) {
+            writer.flush();
+        }
+        if (stream != null) {
+            stream.flush();
+        }
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        if (stream != null) {
+            stream.discard();
+        }
+        status = SC_OK;
+        contentLength = -1;
+        cacheControl = null;
+        hasETag = false;
+        hasContentEncoding = false;
+        hasVary = false;
+    }
+
+    @Override
+    public void resetBuffer() {
+        super.resetBuffer();
+        if (stream != null) {
+            stream.discard();
+        }
+    }
+
+    /**
+     * 保持している本文を送信し、圧縮を終了します。
+     */
+    public void finish() throws IOException {
+        if (passThrough) {
+            return;
+        }
+        if (writer != null) {
+            writer.flush();
+        }
+        if (stream != null) {
+            stream.finish();
+        } else {
+            addVary();
+            if (contentLength >= 0) {
+                response.setContentLength(contentLength);
+            }
+        }
+    }
+
+    /**
+     * 本文を送信せずに圧縮を終了し、保持しているバッファを解放します。
+     * {@link #finish()}が完了した後に呼び出しても何も送信しません。
+     */
+    public void abort() {
+        if (stream != null) {
+            stream.abort();
+        }
+    }
+
+    private void discard() {
+        passThrough = true;
+        if (stream != null) {
+            stream.discard();
+        }
+    }
+
+    private boolean isCompressible() {
+        return encoding != null && isCompressionCandidate();
+    }
+
+    /*
+     * 要求されたエンコーディングを除いて、圧縮の条件を満たしているかを返します。
+     */
+    private boolean isCompressionCandidate() {
+        if (!optimizer.isCompression() || hasContentEncoding || status != SC_OK) {
+            return false;
+        }
+        String contentType = getContentType();
+        if (contentType == null) {
+            return false;
+        }
+        contentType = contentType.toLowerCase();
+        return contentType.startsWith("text/")
+                || contentType.indexOf("javascript") >= 0
+                || contentType.indexOf("json") >= 0
+                || contentType.indexOf("xml") >= 0;
+    }
+
+    private boolean isCacheable() {
+        return optimizer.isETag() && !hasETag && status == SC_OK
+                && "GET".equals(request.getMethod())
+                && (cacheControl == null || cacheControl.toLowerCase().indexOf("no-store") < 0);
+    }
+
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if ("*".equals(candidate) || etag.equals(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /*
+     * 圧縮の対象になり得る場合、Accept-Encodingによって本文が変わることを示します。
+     * 304や圧縮しない短い本文も、キャッシュが他のエンコーディングの本文と取り違えないよう設定します。
+     */
+    private void addVary() {
+        if (!hasVary && isCompressionCandidate()) {
+            hasVary = true;
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+    }
+
+    private DeflaterOutputStream openCompressor() throws IOException {
+        response.setHeader("Content-Encoding", encoding);
+        // 圧縮の終了時に元のストリームを閉じないようにする
+        OutputStream body = new FilterOutputStream(response.getOutputStream()) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                this.out.write(b, off, len);
+            }
+
+            @Override
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        if ("gzip".equals(encoding)) {
+            GzipOutputStream gzip =
+                    new GzipOutputStream(body, optimizer.getBufferPool().getBufferSize());
+            deflater = gzip.getDeflater();
+            return gzip;
+        }
+        deflater = new Deflater();
+        return new DeflaterOutputStream(body, deflater);
+    }
+
+    /*
+     * Deflaterのネイティブのメモリを解放します。本文は書き込みません。
+     */
+    private void endCompressor() {
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+    }
+
+    private final class BufferingOutputStream extends ServletOutputStream {
+        private final List<byte[]> chunks = new ArrayList<byte[]>();
+        private int count;
+        /** 保持する最大のバイト数。判定前は-1 */
+        private int limit = -1;
+        /** 保持をやめた後の送信先 */
+        private OutputStream target;
+        private boolean finished;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (finished || passThrough) {
+                return;
+            }
+            if (target != null) {
+                target.write(b, off, len);
+                return;
+            }
+            if (limit < 0) {
+                // 最初の書き込みまでにヘッダは設定されている
+                int threshold = isCompressible() ? optimizer.getCompressionThreshold() : 0;
+                limit = isCacheable() ? Math.max(threshold, optimizer.getMaxETagBytes()) : threshold;
+            }
+            if (count + len > limit) {
+                startStreaming();
+                target.write(b, off, len);
+                return;
+            }
+            append(b, off, len);
+        }
+
+        private void append(byte[] b, int off, int len) {
+            BufferPool pool = optimizer.getBufferPool();
+            int size = pool.getBufferSize();
+            while (len > 0) {
+                int pos = count % size;
+                if (pos == 0 && count / size == chunks.size()) {
+                    chunks.add(pool.acquire());
+                }
+                byte[] chunk = chunks.get(count / size);
+                int n = Math.min(len, size - pos);
+                System.arraycopy(b, off, chunk, pos, n);
+                off += n;
+                len -= n;
+                count += n;
+            }
+        }
+
+        /*
+         * 保持をやめてヘッダを確定し、保持していた本文を送信します。
+         */
+        private void startStreaming() throws IOException {
+            // 圧縮する場合の上限は圧縮する最小のバイト数以上なので、超えた本文は常に圧縮する
+            addVary();
+            if (isCompressible()) {
+                target = openCompressor();
+            } else {
+                if (contentLength >= 0) {
+                    response.setContentLength(contentLength);
+                }
+                target = response.getOutputStream();
+            }
+            writeChunks(target);
+            release();
+        }
+
+        private void writeChunks(OutputStream out) throws IOException {
+            int size = optimizer.getBufferPool().getBufferSize();
+            int remaining = count;
+            for (byte[] chunk : chunks) {
+                int n = Math.min(remaining, size);
+                out.write(chunk, 0, n);
+                remaining -= n;
+            }
+        }
+
+        private String digest() {
+            try {
+                MessageDigest md5 = MessageDigest.getInstance("MD5");
+                int size = optimizer.getBufferPool().getBufferSize();
+                int remaining = count;
+                for (byte[] chunk : chunks) {
+                    int n = Math.min(remaining, size);
+                    md5.update(chunk, 0, n);
+                    remaining -= n;
+                }
+                byte[] hash = md5.digest();
+                char[] hex = new char[hash.length * 2];
+                for (int i = 0; i < hash.length; ++i) {
+                    hex[i * 2] = HEX[(hash[i] >> 4) & 0x0f];
+                    hex[i * 2 + 1] = HEX[hash[i] & 0x0f];
+                }
+                return new String(hex);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (target != null) {
+                target.flush();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            // finish()で送信する
+        }
+
+        void finish() throws IOException {
+            if (finished || passThrough) {
+                return;
+            }
+            finished = true;
+            if (target != null) {
+                if (deflater != null) {
+                    try {
+                        target.close();
+                    } finally {
+                        endCompressor();
+                    }
+                }
+                return;
+            }
+
+            addVary();
+            boolean compress =
+                    isCompressible() && count >= optimizer.getCompressionThreshold();
+            if (count > 0 && isCacheable()) {
+                String etag = "\"" + digest() + (compress ? "-" + encoding : "") + "\"";
+                response.setHeader("ETag", etag);
+                if (matches(request.getHeader("If-None-Match"), etag)) {
+                    response.setStatus(SC_NOT_MODIFIED);
+                    release();
+                    return;
+                }
+            }
+            if (compress) {
+                DeflaterOutputStream out = openCompressor();
+                try {
+                    writeChunks(out);
+                    out.close();
+                } finally {
+                    endCompressor();
+                }
+            } else {
+                response.setContentLength(count);
+                writeChunks(response.getOutputStream());
+            }
+            release();
+        }
+
+        void abort() {
+            // finish()の途中で失敗した場合も解放する
+            finished = true;
+            endCompressor();
+            release();
+        }
+
+        void discard() {
+            if (target == null) {
+                release();
+                limit = -1;
+            }
+        }
+
+        private void release() {
+            BufferPool pool = optimizer.getBufferPool();
+            for (byte[] chunk : chunks) {
+                pool.release(chunk);
+            }
+            chunks.clear();
+            count = 0;
+        }
+    }
+
+    /*
+     * 中断時に書き込まずに終了できるよう、Deflaterを取得できるGZIPOutputStream。
+     */
+    private static final class GzipOutputStream extends GZIPOutputStream {
+        GzipOutputStream(OutputStream out, int size) throws IOException {
+            super(out, size);
+        }
+
+        Deflater getDeflater() {
+            return def;
+        }
+    }
+}
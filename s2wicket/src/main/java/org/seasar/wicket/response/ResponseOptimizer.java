@@ -0,0 +1,149 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.response;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * レスポンスの圧縮とETagによる条件付きGETを行う{@link OptimizedResponse}を作成するクラス。
+ * <p>
+ * S2WicketFilterの初期化パラメータresponseCompressionまたはresponseETagにtrueを指定すると有効になります。
+ * Ajaxのリクエストとヘッドリクエストは対象にしません。
+ * </p>
+ */
+public class ResponseOptimizer {
+    private final BufferPool bufferPool = new BufferPool(8192, 256);
+
+    private boolean compression;
+    private int compressionThreshold = 1024;
+    private boolean etag;
+    private int maxETagBytes = 256 * 1024;
+
+    /**
+     * レスポンスを包みます。
+     *
+     * @return 包んだレスポンス。対象にしないリクエストの場合はnull
+     */
+    public OptimizedResponse wrap(HttpServletRequest request,
+            HttpServletResponse response) {
+        if ("true".equals(request.getHeader("Wicket-Ajax"))
+                || "HEAD".equals(request.getMethod())) {
+            return null;
+        }
+        return new OptimizedResponse(this, request, response,
+                compression ? getAcceptedEncoding(request) : null);
+    }
+
+    private static String getAcceptedEncoding(HttpServletRequest request) {
+        return selectEncoding(request.getHeader("Accept-Encoding"));
+    }
+
+    /*
+     * Accept-Encodingのトークンとq値から、使用するエンコーディングを選びます。
+     * q=0のエンコーディングは使用せず、同じq値ならgzipを優先します。"*"は明示されていないエンコーディングに適用します。
+     */
+    static String selectEncoding(String accept) {
+        if (accept == null) {
+            return null;
+        }
+        double gzip = -1.0;
+        double deflate = -1.0;
+        double any = -1.0;
+        for (String token : accept.split(",")) {
+            String[] params = token.split(";");
+            String coding = params[0].trim().toLowerCase();
+            double q = 1.0;
+            for (int i = 1; i < params.length; ++i) {
+                String param = params[i].trim().toLowerCase();
+                if (param.startsWith("q=")) {
+                    try {
+                        q = Double.parseDouble(param.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0.0;
+                    }
+                }
+            }
+            if ("gzip".equals(coding) || "x-gzip".equals(coding)) {
+                gzip = Math.max(gzip, q);
+            } else if ("deflate".equals(coding)) {
+                deflate = Math.max(deflate, q);
+            } else if ("*".equals(coding)) {
+                any = Math.max(any, q);
+            }
+        }
+        if (gzip < 0) {
+            gzip = any;
+        }
+        if (deflate < 0) {
+            deflate = any;
+        }
+        if (gzip > 0 && gzip >= deflate) {
+            return "gzip";
+        } else if (deflate > 0) {
+            return "deflate";
+        }
+        return null;
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    public boolean isCompression() {
+        return compression;
+    }
+
+    /**
+     * テキストのレスポンスをgzipまたはdeflateで圧縮するかどうかを設定します。
+     */
+    public void setCompression(boolean compression) {
+        this.compression = compression;
+    }
+
+    public int getCompressionThreshold() {
+        return compressionThreshold;
+    }
+
+    /**
+     * 圧縮する本文の最小のバイト数を設定します。デフォルトは1024です。
+     */
+    public void setCompressionThreshold(int compressionThreshold) {
+        this.compressionThreshold = compressionThreshold;
+    }
+
+    public boolean isETag() {
+        return etag;
+    }
+
+    /**
+     * キャッシュ可能なレスポンスにETagを付け、If-None-Matchに一致する場合に304を返すかどうかを設定します。
+     */
+    public void setETag(boolean etag) {
+        this.etag = etag;
+    }
+
+    public int getMaxETagBytes() {
+        return maxETagBytes;
+    }
+
+    /**
+     * ETagを計算する本文の最大のバイト数を設定します。これを超える本文はETagを付けずに送信します。デフォルトは256KBです。
+     */
+    public void setMaxETagBytes(int maxETagBytes) {
+        this.maxETagBytes = maxETagBytes;
+    }
+}
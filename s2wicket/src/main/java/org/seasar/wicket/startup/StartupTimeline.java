@@ -0,0 +1,179 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.startup;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+import org.seasar.wicket.util.JmxUtil;
+
+/**
+ * 起動時の各フェーズの所要時間を記録するクラス。
+ * <p>
+ * {@link org.seasar.wicket.S2WicketFilter}が初期化のたびに作成し、結果をログに出力するとともに、
+ * JMXに「org.seasar.wicket:type=StartupTimeline,name=フィルタ名」として登録します。
+ * 初期化中は{@link #current()}で取得できるため、
+ * {@link TimingS2ContainerProvider}などから各diconの読み込み時間を記録できます。
+ * 複数のフィルタが同時に初期化されても混ざらないよう、初期化中のタイムラインはスレッドごとに保持します。
+ * </p>
+ */
+public class StartupTimeline implements StartupTimelineMBean {
+    private static final ThreadLocal<StartupTimeline> current =
+            new ThreadLocal<StartupTimeline>();
+
+    private final long startNanos = System.nanoTime();
+    private final List<Phase> phases = new ArrayList<Phase>();
+    private long totalNanos = -1;
+
+    private ObjectName objectName;
+
+    /**
+     * 現在のスレッドで初期化中のタイムラインを返します。初期化中でなければnullを返します。
+     */
+    public static StartupTimeline current() {
+        return current.get();
+    }
+
+    /**
+     * 現在のスレッドで初期化中のタイムラインを設定します。nullの場合は解除します。
+     */
+    public static void setCurrent(StartupTimeline timeline) {
+        if (timeline != null) {
+            current.set(timeline);
+        } else {
+            current.remove();
+        }
+    }
+
+    /**
+     * フェーズの所要時間を記録します。
+     *
+     * @param name
+     *            フェーズ名
+     * @param phaseStartNanos
+     *            フェーズの開始時の{@link System#nanoTime()}
+     */
+    public void record(String name, long phaseStartNanos) {
+        record(name, phaseStartNanos, 0);
+    }
+
+    /**
+     * 入れ子になったフェーズの所要時間を記録します。
+     *
+     * @param depth
+     *            入れ子の深さ。レポートでの字下げに使用します
+     */
+    public synchronized void record(String name, long phaseStartNanos,
+            int depth) {
+        long now = System.nanoTime();
+        phases.add(new Phase(name, Thread.currentThread().getName(),
+                phaseStartNanos - startNanos, now - phaseStartNanos, depth));
+    }
+
+    /**
+     * 記録を終了します。
+     */
+    public synchronized void finish() {
+        totalNanos = System.nanoTime() - startNanos;
+    }
+
+    public synchronized long getTotalMillis() {
+        long nanos =
+                totalNanos >= 0 ? totalNanos : System.nanoTime() - startNanos;
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    public synchronized String[] getPhases() {
+        List<Phase> sorted = sortedPhases();
+        String[] result = new String[sorted.size()];
+        for (int i = 0; i < result.length; ++i) {
+            Phase phase = sorted.get(i);
+            result[i] = phase.name + "=" + toMillis(phase.durationNanos);
+        }
+        return result;
+    }
+
+    public synchronized String getReport() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("startup ").append(getTotalMillis()).append("ms");
+        for (Phase phase : sortedPhases()) {
+            sb.append("\n  ");
+            for (int i = 0; i < phase.depth; ++i) {
+                sb.append("  ");
+            }
+            sb.append(phase.name).append(' ');
+            sb.append(toMillis(phase.durationNanos)).append("ms");
+            sb.append(" (+").append(toMillis(phase.offsetNanos)).append("ms");
+            sb.append(", ").append(phase.threadName).append(')');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * プラットフォームのMBeanServerに登録します。登録に失敗してもエラーにはしません。
+     */
+    public synchronized void register(String name) {
+        objectName = JmxUtil.register(this, "StartupTimeline", name);
+    }
+
+    /**
+     * MBeanServerから登録を解除します。
+     */
+    public synchronized void unregister() {
+        JmxUtil.unregister(objectName);
+        objectName = null;
+    }
+
+    /*
+     * 入れ子のフェーズは外側より先に終わるため、開始順に並べ替える
+     */
+    private List<Phase> sortedPhases() {
+        List<Phase> sorted = new ArrayList<Phase>(phases);
+        Collections.sort(sorted, new Comparator<Phase>() {
+            public int compare(Phase o1, Phase o2) {
+                return o1.offsetNanos < o2.offsetNanos ? -1
+                        : (o1.offsetNanos == o2.offsetNanos ? 0 : 1);
+            }
+        });
+        return sorted;
+    }
+
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+
+    private static class Phase {
+        final String name;
+        final String threadName;
+        final long offsetNanos;
+        final long durationNanos;
+        final int depth;
+
+        Phase(String name, String threadName, long offsetNanos,
+                long durationNanos, int depth) {
+            this.name = name;
+            this.threadName = threadName;
+            this.offsetNanos = offsetNanos;
+            this.durationNanos = durationNanos;
+            this.depth = depth;
+        }
+    }
+}
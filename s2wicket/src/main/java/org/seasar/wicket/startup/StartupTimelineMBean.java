@@ -0,0 +1,36 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.startup;
+
+/**
+ * {@link StartupTimeline}をJMXで公開するためのインタフェース。
+ */
+public interface StartupTimelineMBean {
+    /**
+     * 起動にかかった時間（ミリ秒）を返します。
+     */
+    long getTotalMillis();
+
+    /**
+     * 各フェーズの所要時間を「名前=ミリ秒」の形式で返します。
+     */
+    String[] getPhases();
+
+    /**
+     * ログに出力したものと同じレポートを返します。
+     */
+    String getReport();
+}
@@ -0,0 +1,97 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.startup;
+
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.container.factory.S2ContainerFactory;
+
+/**
+ * 各diconの読み込み時間を{@link StartupTimeline}に記録するS2ContainerFactoryのプロバイダ。
+ * <p>
+ * 時間はincludeしたdiconの読み込みを含みます。レポートではincludeの深さに応じて字下げされます。
+ * </p>
+ * <h4>s2container.dicon例</h4>
+ *
+ * <pre>
+ * &lt;components&gt;
+ *   &lt;component class=&quot;org.seasar.wicket.startup.TimingS2ContainerProvider&quot; /&gt;
+ * &lt;/components&gt;
+ * </pre>
+ */
+public class TimingS2ContainerProvider extends S2ContainerFactory.DefaultProvider {
+    private static final ThreadLocal<int[]> depth = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1];
+        }
+    };
+
+    /** クラスローダを指定した作成の中で、同じパスを二重に記録しないためのパス */
+    private static final ThreadLocal<String> creating = new ThreadLocal<String>();
+
+    @Override
+    public S2Container create(String path, ClassLoader classLoader) {
+        // S2WicketFilterはルートのdiconをこちらで作成する
+        long start = System.nanoTime();
+        int[] d = depth.get();
+        ++d[0];
+        creating.set(path);
+        try {
+            return super.create(path, classLoader);
+        } finally {
+            creating.remove();
+            --d[0];
+            record(path, start, d[0]);
+        }
+    }
+
+    @Override
+    public S2Container create(String path) {
+        if (path.equals(creating.get())) {
+            creating.remove();
+            return super.create(path);
+        }
+        long start = System.nanoTime();
+        int[] d = depth.get();
+        ++d[0];
+        try {
+            return super.create(path);
+        } finally {
+            --d[0];
+            record(path, start, d[0]);
+        }
+    }
+
+    @Override
+    public S2Container include(S2Container parent, String path) {
+        long start = System.nanoTime();
+        int[] d = depth.get();
+        ++d[0];
+        try {
+            return super.include(parent, path);
+        } finally {
+            --d[0];
+            record(path, start, d[0]);
+        }
+    }
+
+    private static void record(String path, long start, int depth) {
+        StartupTimeline timeline = StartupTimeline.current();
+        if (timeline != null) {
+            timeline.record("dicon " + path, start, depth + 1);
+        }
+    }
+}
@@ -0,0 +1,81 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.util;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * S2WicketのMBeanをプラットフォームのMBeanServerに登録するためのユーティリティ。
+ * <p>
+ * MBeanは「org.seasar.wicket:type=種類,name=名前」の形式で登録されます。
+ * 登録や解除に失敗してもアプリケーションの動作には影響しないため、警告をログに出力するだけにしています。
+ * </p>
+ */
+public final class JmxUtil {
+    private static final Logger logger = LoggerFactory.getLogger(JmxUtil.class);
+
+    /** MBeanのドメイン */
+    public static final String DOMAIN = "org.seasar.wicket";
+
+    private JmxUtil() {
+    }
+
+    /**
+     * MBeanを登録します。同じ名前のMBeanが登録されていれば置き換えます。
+     *
+     * @return 登録した名前。失敗した場合はnull
+     */
+    public static ObjectName register(Object mbean, String type, String name) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName =
+                    new ObjectName(DOMAIN + ":type=" + type + ",name="
+                            + ObjectName.quote(name));
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+            server.registerMBean(mbean, objectName);
+            return objectName;
+        } catch (JMException e) {
+            logger.warn("[jmx] failed to register mbean: " + type, e);
+            return null;
+        }
+    }
+
+    /**
+     * MBeanの登録を解除します。nullの場合は何もしません。
+     */
+    public static void unregister(ObjectName objectName) {
+        if (objectName == null) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            if (server.isRegistered(objectName)) {
+                server.unregisterMBean(objectName);
+            }
+        } catch (JMException e) {
+            logger.warn("[jmx] failed to unregister mbean: " + objectName, e);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.warmup;
+
+import java.io.IOException;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+
+import org.apache.wicket.Page;
+import org.apache.wicket.ThreadContext;
+import org.apache.wicket.protocol.http.WebApplication;
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.protocol.http.mock.MockHttpServletResponse;
+import org.apache.wicket.protocol.http.mock.MockHttpSession;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.S2Container;
+import org.seasar.framework.container.creator.WicketCreator;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 起動直後にページを模擬リクエストで表示し、JIT、マークアップのキャッシュ、
+ * S2Containerへの登録、プロクシのクラスなどを事前に準備するクラス。
+ * <p>
+ * 模擬リクエストはフィルタの{@link Filter#doFilter(ServletRequest, ServletResponse, FilterChain)}
+ * を通して処理されるため、実際のリクエストと同じ経路が準備されます。
+ * すべての模擬リクエストは1つのセッションで行い、終了時にそのセッションのページを破棄します。
+ * </p>
+ * <p>
+ * Wicketで処理されずにフィルタチェーンに渡されたリクエスト、400以上のステータスを返したリクエスト、
+ * 例外で終わったリクエストは失敗として扱い、終了時に{@link Callback}へ通知します。
+ * </p>
+ */
+public class WarmupRunner implements Runnable {
+    private static final Logger logger =
+            LoggerFactory.getLogger(WarmupRunner.class);
+
+    /** S2Containerに登録されているすべてのページを対象にする指定 */
+    public static final String ALL_PAGES = "*";
+
+    /**
+     * ページの表示が終わったときに呼び出される処理。
+     */
+    public interface Callback {
+        /**
+         * @param succeeded
+         *            すべてのページを表示できた場合はtrue
+         */
+        void finished(boolean succeeded);
+    }
+
+    private final Filter filter;
+    private final String filterPath;
+    private final WebApplication application;
+    private final ServletContext servletContext;
+    private final List<String> paths;
+    private final int iterations;
+    private final Callback callback;
+    private final Set<String> failedPaths = new LinkedHashSet<String>();
+
+    /**
+     * コンストラクタ。
+     *
+     * @param filter
+     *            模擬リクエストを処理するフィルタ
+     * @param filterPath
+     *            フィルタのパス（"app/"のように先頭に"/"を含まない形式。ルートの場合は""）
+     * @param application
+     *            アプリケーション
+     * @param paths
+     *            表示するページのパス（フィルタのパスからの相対パス）
+     * @param iterations
+     *            繰り返す回数
+     * @param callback
+     *            終了時に呼び出す処理
+     */
+    public WarmupRunner(Filter filter, String filterPath,
+            WebApplication application, List<String> paths, int iterations,
+            Callback callback) {
+        this.filter = filter;
+        this.filterPath = filterPath != null ? filterPath : "";
+        this.application = application;
+        this.servletContext = application.getServletContext();
+        this.paths = paths;
+        this.iterations = iterations;
+        this.callback = callback;
+    }
+
+    /**
+     * 初期化パラメータの指定からページのパス（フィルタのパスからの相対パス）を求めます。
+     * "*"はS2Containerに登録されているデフォルトコンストラクタを持つすべてのページを表します。
+     */
+    public static List<String> resolvePaths(String warmupPages,
+            S2Container container, WebApplication application) {
+        Set<String> paths = new LinkedHashSet<String>();
+        for (String page : warmupPages.split(",")) {
+            page = page.trim();
+            if (ALL_PAGES.equals(page)) {
+                paths.add("/");
+                for (Class<?> pageClass : getRegisteredPages(container)) {
+                    if (pageClass != application.getHomePage()) {
+                        paths.add("/wicket/bookmarkable/" + pageClass.getName());
+                    }
+                }
+            } else if (page.length() > 0) {
+                paths.add(page.startsWith("/") ? page : "/" + page);
+            }
+        }
+        return new ArrayList<String>(paths);
+    }
+
+    private static List<Class<?>> getRegisteredPages(S2Container container) {
+        List<Class<?>> result = new ArrayList<Class<?>>();
+        int size = container.getComponentDefSize();
+        for (int i = 0; i < size; ++i) {
+            ComponentDef cd = container.getComponentDef(i);
+            String name = cd.getComponentName();
+            Class<?> clazz = cd.getComponentClass();
+            if (name == null
+                    || !name.startsWith(WicketCreator.COMPONENTNAME_PREFIX)
+                    || clazz == null || !Page.class.isAssignableFrom(clazz)
+                    || !Modifier.isPublic(clazz.getModifiers())
+                    || Modifier.isAbstract(clazz.getModifiers())) {
+                continue;
+            }
+            try {
+                clazz.getConstructor();
+                result.add(clazz);
+            } catch (NoSuchMethodException ignore) {
+            }
+        }
+        return result;
+    }
+
+    public void run() {
+        MockHttpSession session = new MockHttpSession(servletContext);
+        boolean succeeded = false;
+        try {
+            for (int i = 1; i <= iterations; ++i) {
+                long start = System.currentTimeMillis();
+                for (String path : paths) {
+                    render(session, path, i == 1);
+                }
+                logger.info("[warmup] iteration {}/{}: {} pages in {}ms",
+                        new Object[] { i, iterations, paths.size(),
+                                System.currentTimeMillis() - start });
+            }
+            succeeded = failedPaths.isEmpty();
+            if (!succeeded) {
+                logger.error("[warmup] failed pages: {}", failedPaths);
+            }
+        } catch (RuntimeException e) {
+            logger.warn("[warmup] aborted.", e);
+        } finally {
+            release(session);
+            callback.finished(succeeded);
+        }
+    }
+
+    private void render(MockHttpSession session, String path, boolean first) {
+        MockHttpServletRequest request =
+                new MockHttpServletRequest(application, session, servletContext);
+        request.setURL(request.getContextPath() + "/" + filterPath
+                + path.substring(1));
+        MockHttpServletResponse response = new MockHttpServletResponse(request);
+        UnhandledChain chain = new UnhandledChain();
+        long start = System.currentTimeMillis();
+        try {
+            filter.doFilter(request, response, chain);
+        } catch (IOException e) {
+            logger.warn("[warmup] failed: " + path, e);
+            failedPaths.add(path);
+            return;
+        } catch (ServletException e) {
+            logger.warn("[warmup] failed: " + path, e);
+            failedPaths.add(path);
+            return;
+        }
+        if (chain.reached) {
+            // フィルタチェーンに渡されたのでWicketでは処理されていない
+            logger.warn("[warmup] not handled by wicket: {}",
+                    request.getRequestURI());
+            failedPaths.add(path);
+        } else if (response.getStatus() >= 400) {
+            logger.warn("[warmup] failed: {} -> {}", path, response.getStatus());
+            failedPaths.add(path);
+        } else if (first) {
+            logger.info("[warmup] {} -> {} ({}ms)", new Object[] { path,
+                    response.getStatus(), System.currentTimeMillis() - start });
+        }
+    }
+
+    /*
+     * 模擬セッションで格納されたページを破棄します。
+     */
+    private void release(MockHttpSession session) {
+        ThreadContext.setApplication(application);
+        try {
+            application.sessionUnbound(session.getId());
+        } catch (RuntimeException e) {
+            logger.debug("[warmup] failed to release session.", e);
+        } finally {
+            ThreadContext.detach();
+        }
+        session.invalidate();
+    }
+
+    /*
+     * Wicketで処理されずに後続に渡されたことを記録するフィルタチェーン。
+     */
+    private static class UnhandledChain implements FilterChain {
+        boolean reached;
+
+        public void doFilter(ServletRequest request, ServletResponse response) {
+            reached = true;
+        }
+    }
+}
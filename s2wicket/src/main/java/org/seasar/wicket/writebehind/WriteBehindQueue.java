@@ -0,0 +1,573 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.writebehind;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.seasar.framework.util.MethodUtil;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 書き込み（insert）をキューに溜めて、まとめてバッチで実行するためのコンポーネント。
+ * <p>
+ * キューに溜まった書き込みは、{@link #setBatchSize(int)}件溜まったとき、
+ * もしくは{@link #setFlushInterval(long)}ミリ秒ごとにバックグラウンドで{@link #flush()}されます。
+ * flushでは同じコンポーネントの同じメソッドへの書き込みをまとめ、
+ * メソッド名に"Batch"を付けたListを引数に取るメソッド（S2Daoのバッチ更新、例: insertBatch(List)）
+ * があればそれを1回呼び出し、なければ1件ずつ呼び出します。
+ * </p>
+ * <p>
+ * 溜まった書き込みは、キュー自身のスレッドから呼び出される{@link #drain()}で実行されます。
+ * 1回のバッチを1つのトランザクションで実行するために、drainメソッドにトランザクション属性のアスペクトを
+ * 適用してください。書き込みは呼び出し側のスレッドやトランザクションでは実行されません。
+ * {@link #flush()}はそれまでにキューに追加された書き込みがコミットされるまで待ちます。
+ * すべてコミット済みの場合は待たないため、読み込みのたびに呼び出してもトランザクションは開始されません。
+ * キューが一杯の場合、書き込み側は空きができるまで待ちます（バックプレッシャ）。
+ * </p>
+ * <p>
+ * バッチが失敗した場合は、書き込みを1件ずつ別のトランザクションで{@link #setRetryCount(int)}回まで
+ * 再実行します。それでも失敗した書き込みは破棄され、その書き込みを待っている次の{@link #flush()}が
+ * {@link WriteBehindException}を投げます。
+ * </p>
+ * <h4>dicon例</h4>
+ *
+ * <pre>
+ * &lt;component name=&quot;queue&quot; class=&quot;org.seasar.wicket.writebehind.WriteBehindQueue&quot;&gt;
+ *   &lt;property name=&quot;batchSize&quot;&gt;100&lt;/property&gt;
+ *   &lt;property name=&quot;flushInterval&quot;&gt;500&lt;/property&gt;
+ *   &lt;aspect pointcut=&quot;drain&quot;&gt;j2ee.requiredTx&lt;/aspect&gt;
+ *   &lt;initMethod name=&quot;start&quot; /&gt;
+ *   &lt;destroyMethod name=&quot;stop&quot; /&gt;
+ * &lt;/component&gt;
+ * </pre>
+ *
+ * @see org.seasar.wicket.aop.interceptors.WriteBehindInterceptor
+ */
+public class WriteBehindQueue {
+    protected final Logger logger = LoggerFactory.getLogger(getClass());
+
+    /** バッチ実行するメソッドの接尾辞 */
+    public static final String BATCH_METHOD_SUFFIX = "Batch";
+
+    private static final Method NO_BATCH_METHOD;
+    static {
+        try {
+            NO_BATCH_METHOD = Object.class.getMethod("toString");
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** キューに溜められる最大件数 */
+    private int capacity = 10000;
+    /** 1回のバッチで実行する最大件数（この件数溜まるとflushされる） */
+    private int batchSize = 100;
+    /** 定期的にflushする間隔（ミリ秒） */
+    private long flushInterval = 1000L;
+    /** キューが一杯の場合に、空きを確認するまで待つ時間（ミリ秒） */
+    private long offerTimeout = 1000L;
+    /** 失敗した書き込みを1件ずつ再実行する回数 */
+    private int retryCount = 2;
+
+    private volatile BlockingQueue<Entry> queue;
+    private volatile ScheduledExecutorService scheduler;
+    private volatile Thread worker;
+
+    /** キューへの追加と連番の採番を揃えるためのロック */
+    private final Object enqueueLock = new Object();
+    private long enqueuedSeq;
+
+    /** コミット済みの連番と、まだ通知していない失敗 */
+    private final Object completion = new Object();
+    private long completedSeq;
+    private long failedSeq;
+    private RuntimeException failure;
+
+    /** drainで実行するバッチ（キューのスレッドのみが使用する） */
+    private List<Entry> batch;
+    private final ThreadLocal<Boolean> flushing = new ThreadLocal<Boolean>();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final Map<Method, Method> batchMethods =
+            new ConcurrentHashMap<Method, Method>();
+
+    private final AtomicLong enqueuedCount = new AtomicLong();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong batchCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+
+    /**
+     * バックグラウンドでのflushを開始します。
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        queue = new ArrayBlockingQueue<Entry>(capacity);
+        scheduler =
+                Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "s2wicket-writebehind");
+                        thread.setDaemon(true);
+                        worker = thread;
+                        return thread;
+                    }
+                });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                processQuietly();
+            }
+        }, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * バックグラウンドでのflushを停止し、残っている書き込みをすべて実行します。
+     */
+    public synchronized void stop() {
+        ScheduledExecutorService executor = scheduler;
+        if (executor == null) {
+            return;
+        }
+        executor.execute(new Runnable() {
+            public void run() {
+                processQuietly();
+            }
+        });
+        executor.shutdown();
+        try {
+            executor.awaitTermination(flushInterval * 2 + offerTimeout,
+                    TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scheduler = null;
+        if (!queue.isEmpty()) {
+            logger.warn("[writebehind] {} entries were not written on stop.",
+                    queue.size());
+        }
+        synchronized (completion) {
+            completion.notifyAll();
+        }
+    }
+
+    /**
+     * 書き込みをキューに追加します。
+     *
+     * @param target
+     *            書き込みを行うコンポーネント
+     * @param method
+     *            書き込みを行うメソッド
+     * @param args
+     *            メソッドの引数
+     */
+    public void enqueue(Object target, Method method, Object[] args) {
+        if (queue == null) {
+            // 開始されていない場合はそのまま実行
+            MethodUtil.invoke(method, target, args);
+            return;
+        }
+        Entry entry = new Entry(target, method, args);
+        while (!offer(entry)) {
+            if (Thread.currentThread() == worker
+                    || Thread.currentThread().isInterrupted()) {
+                // キューのスレッド自身や割り込まれたスレッドは待たずにそのまま実行
+                MethodUtil.invoke(method, target, args);
+                return;
+            }
+            logger.debug("[writebehind] queue is full, waiting for flush");
+            long last;
+            synchronized (enqueueLock) {
+                last = enqueuedSeq;
+            }
+            await(last, offerTimeout);
+        }
+        enqueuedCount.incrementAndGet();
+        if (queue.size() >= batchSize) {
+            requestFlush();
+        }
+    }
+
+    private boolean offer(Entry entry) {
+        synchronized (enqueueLock) {
+            // キューに入れる前に採番し、取り出したスレッドから連番が見えるようにする
+            entry.seq = ++enqueuedSeq;
+            if (!queue.offer(entry)) {
+                --enqueuedSeq;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * それまでにキューに追加された書き込みがすべてコミットされるまで待ちます。
+     * <p>
+     * 読み込みの前に呼び出すことで、自分が行った書き込みを読めることを保証できます。
+     * 書き込みはキューのスレッドで実行され、呼び出し側のトランザクションには含まれません。
+     * </p>
+     *
+     * @throws WriteBehindException
+     *             待っていた書き込みが再実行しても失敗した場合
+     */
+    public void flush() {
+        if (queue == null || Thread.currentThread() == worker) {
+            return;
+        }
+        long target;
+        synchronized (enqueueLock) {
+            target = enqueuedSeq;
+        }
+        await(target, 0L);
+        RuntimeException cause = null;
+        synchronized (completion) {
+            if (failure != null && failedSeq <= target) {
+                cause = failure;
+                failure = null;
+            }
+        }
+        if (cause != null) {
+            throw new WriteBehindException(
+                    "[writebehind] queued write failed: " + cause, cause);
+        }
+    }
+
+    /*
+     * 連番targetまでの書き込みがコミットされるまで待ちます。timeoutが0の場合はコミットされるか停止されるまで待ちます。
+     */
+    private void await(long target, long timeout) {
+        synchronized (completion) {
+            if (completedSeq >= target) {
+                return;
+            }
+        }
+        requestFlush();
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized (completion) {
+            while (completedSeq < target && scheduler != null) {
+                long wait = flushInterval;
+                if (timeout > 0) {
+                    wait = Math.min(wait, deadline - System.currentTimeMillis());
+                    if (wait <= 0) {
+                        return;
+                    }
+                }
+                try {
+                    completion.wait(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void requestFlush() {
+        ScheduledExecutorService executor = scheduler;
+        if (executor != null && flushScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        flushScheduled.set(false);
+                        processQuietly();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // 停止中
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    /**
+     * キューのスレッドが取り出したバッチを実行します。
+     * <p>
+     * 1つのトランザクションで実行されるように、このメソッドにトランザクション属性のアスペクトを適用してください。
+     * キューのスレッド以外から呼び出すことはできません。通常は{@link #flush()}を使用します。
+     * </p>
+     */
+    public void drain() {
+        if (Thread.currentThread() != worker) {
+            throw new IllegalStateException(
+                    "drain() must be called on the write-behind thread.");
+        }
+        List<Entry> entries = batch;
+        if (entries == null) {
+            return;
+        }
+        flushing.set(Boolean.TRUE);
+        try {
+            execute(entries);
+        } finally {
+            flushing.remove();
+        }
+    }
+
+    /**
+     * 現在のスレッドがflush中かどうかを返します。
+     */
+    public boolean isFlushing() {
+        return flushing.get() != null;
+    }
+
+    private void processQuietly() {
+        try {
+            process();
+        } catch (Throwable t) {
+            logger.error("[writebehind] error on flushing.", t);
+        }
+    }
+
+    /*
+     * キューのスレッドで、溜まっている書き込みをバッチごとに実行してコミットします。
+     */
+    private void process() {
+        List<Entry> entries = new ArrayList<Entry>(batchSize);
+        while (queue.drainTo(entries, batchSize) > 0) {
+            try {
+                executeBatch(entries);
+            } finally {
+                // 成功したか破棄したかに関わらず、待っているflushを解放する
+                synchronized (completion) {
+                    completedSeq =
+                            Math.max(completedSeq, entries.get(entries.size() - 1).seq);
+                    completion.notifyAll();
+                }
+                entries.clear();
+            }
+        }
+    }
+
+    private void executeBatch(List<Entry> entries) {
+        try {
+            drainInTransaction(entries);
+            return;
+        } catch (RuntimeException e) {
+            logger.warn("[writebehind] batch of " + entries.size()
+                    + " entries failed, retrying one by one.", e);
+        }
+        for (Entry entry : entries) {
+            RuntimeException cause = null;
+            for (int i = 0; i < Math.max(retryCount, 1); ++i) {
+                try {
+                    drainInTransaction(Collections.singletonList(entry));
+                    cause = null;
+                    break;
+                } catch (RuntimeException e) {
+                    cause = e;
+                }
+            }
+            if (cause != null) {
+                fail(entry, cause);
+            }
+        }
+    }
+
+    /*
+     * drainを（アスペクトを通して）呼び出し、戻った時点でコミットされています。
+     */
+    private void drainInTransaction(List<Entry> entries) {
+        batch = entries;
+        try {
+            drain();
+        } finally {
+            batch = null;
+        }
+        writtenCount.addAndGet(entries.size());
+        batchCount.incrementAndGet();
+    }
+
+    private void fail(Entry entry, RuntimeException cause) {
+        failedCount.incrementAndGet();
+        logger.error("[writebehind] failed to write by " + entry.method
+                + ", discarded.", cause);
+        synchronized (completion) {
+            if (failure == null) {
+                failure = cause;
+                failedSeq = entry.seq;
+            }
+        }
+    }
+
+    private void execute(List<Entry> entries) {
+        // 同じコンポーネントの同じメソッドへの書き込みをまとめる（メソッドごとの順序は維持）
+        List<Group> groups = new ArrayList<Group>();
+        Map<Entry, Group> batchGroups = new HashMap<Entry, Group>();
+        for (Entry entry : entries) {
+            Method batchMethod = getBatchMethod(entry);
+            if (batchMethod == null) {
+                groups.add(new Group(entry, null));
+                continue;
+            }
+            Group group = batchGroups.get(entry);
+            if (group == null) {
+                group = new Group(entry, batchMethod);
+                batchGroups.put(entry, group);
+                groups.add(group);
+            }
+            group.args.add(entry.args[0]);
+        }
+        // 失敗した場合はトランザクションがロールバックされるよう、例外をそのまま投げる
+        for (Group group : groups) {
+            Entry entry = group.entry;
+            if (group.batchMethod == null) {
+                MethodUtil.invoke(entry.method, entry.target, entry.args);
+            } else {
+                MethodUtil.invoke(group.batchMethod, entry.target,
+                        new Object[] { group.args });
+            }
+        }
+    }
+
+    private Method getBatchMethod(Entry entry) {
+        Method method = batchMethods.get(entry.method);
+        if (method == null) {
+            method = NO_BATCH_METHOD;
+            if (entry.args.length == 1) {
+                try {
+                    method =
+                            entry.target.getClass().getMethod(
+                                    entry.method.getName()
+                                            + BATCH_METHOD_SUFFIX, List.class);
+                } catch (NoSuchMethodException ignore) {
+                }
+            }
+            batchMethods.put(entry.method, method);
+        }
+        return method != NO_BATCH_METHOD ? method : null;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public long getFlushInterval() {
+        return flushInterval;
+    }
+
+    public void setFlushInterval(long flushInterval) {
+        this.flushInterval = flushInterval;
+    }
+
+    public long getOfferTimeout() {
+        return offerTimeout;
+    }
+
+    public void setOfferTimeout(long offerTimeout) {
+        this.offerTimeout = offerTimeout;
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * バッチが失敗した場合に、書き込みを1件ずつ再実行する回数を設定します。デフォルトは2です。
+     */
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    /**
+     * キューに溜まっている件数を取得します。
+     */
+    public int getQueueSize() {
+        return queue != null ? queue.size() : 0;
+    }
+
+    public long getEnqueuedCount() {
+        return enqueuedCount.get();
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    public long getBatchCount() {
+        return batchCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    private static class Group {
+        final Entry entry;
+        final Method batchMethod;
+        final List<Object> args = new ArrayList<Object>();
+
+        Group(Entry entry, Method batchMethod) {
+            this.entry = entry;
+            this.batchMethod = batchMethod;
+        }
+    }
+
+    /*
+     * キューの要素。同じコンポーネントの同じメソッドへの書き込みを等価とみなす。
+     */
+    private static class Entry {
+        final Object target;
+        final Method method;
+        final Object[] args;
+        long seq;
+
+        Entry(Object target, Method method, Object[] args) {
+            this.target = target;
+            this.method = method;
+            this.args = args;
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(target) * 31 + method.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Entry)) {
+                return false;
+            }
+            Entry other = (Entry) obj;
+            return target == other.target && method.equals(other.method);
+        }
+    }
+}
@@ -0,0 +1,212 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.reloading;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * WatchServiceを使用した{@link ClassChangeWatcher}の実装。Java 7以降でのみ使用できます。
+ */
+public class WatchServiceClassChangeWatcher extends ClassChangeWatcher
+        implements Runnable {
+    private static final Logger logger =
+            LoggerFactory.getLogger(WatchServiceClassChangeWatcher.class);
+
+    private final List<Path> roots = new ArrayList<Path>();
+    private final long quietPeriod;
+    private final Runnable listener;
+
+    private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+
+    private WatchService watchService;
+    private Thread thread;
+
+    public WatchServiceClassChangeWatcher(Collection<URL> locations,
+            Collection<String> patterns, long quietPeriod, Runnable listener) {
+        super(patterns);
+        this.quietPeriod = quietPeriod;
+        this.listener = listener;
+        for (URL location : locations) {
+            if (!"file".equals(location.getProtocol())) {
+                continue;
+            }
+            try {
+                File file = new File(location.toURI());
+                if (file.isDirectory()) {
+                    roots.add(file.toPath());
+                }
+            } catch (URISyntaxException e) {
+                logger.warn("[reload] ignore location: {}", location);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            for (Path root : roots) {
+                registerAll(root);
+                logger.info("[reload] watching {}", root);
+            }
+        } catch (IOException e) {
+            logger.warn("[reload] failed to start watching.", e);
+            return;
+        }
+        thread = new Thread(this, "s2wicket-class-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        thread.interrupt();
+        thread = null;
+        try {
+            watchService.close();
+        } catch (IOException ignore) {
+        }
+    }
+
+    public void run() {
+        long changedAt = -1;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key;
+                if (changedAt < 0) {
+                    key = watchService.take();
+                } else {
+                    long wait =
+                            changedAt + quietPeriod - System.currentTimeMillis();
+                    key =
+                            wait > 0 ? watchService.poll(wait,
+                                    TimeUnit.MILLISECONDS) : null;
+                    if (key == null) {
+                        // 変更が止まったのでリロードする
+                        changedAt = -1;
+                        fireChanged();
+                        continue;
+                    }
+                }
+                if (handle(key)) {
+                    changedAt = System.currentTimeMillis();
+                }
+            }
+        } catch (InterruptedException ignore) {
+        } catch (ClosedWatchServiceException ignore) {
+        }
+    }
+
+    /*
+     * イベントを処理し、リロード対象のクラスが変更されていればtrueを返します。
+     */
+    private boolean handle(WatchKey key) {
+        Path directory = directories.get(key);
+        boolean changed = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                changed = true;
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE
+                    && Files.isDirectory(path)) {
+                try {
+                    registerAll(path);
+                } catch (IOException e) {
+                    logger.warn("[reload] failed to watch " + path, e);
+                }
+                changed = true;
+            } else if (isTargetClassFile(path)) {
+                changed = true;
+            }
+        }
+        if (!key.reset()) {
+            directories.remove(key);
+        }
+        return changed;
+    }
+
+    private boolean isTargetClassFile(Path path) {
+        String fileName = path.getFileName().toString();
+        if (!fileName.endsWith(".class")) {
+            return false;
+        }
+        for (Path root : roots) {
+            if (path.startsWith(root)) {
+                String relative = root.relativize(path).toString();
+                String className =
+                        relative.substring(0, relative.length() - 6).replace(
+                                File.separatorChar, '.');
+                return isTarget(className);
+            }
+        }
+        return false;
+    }
+
+    private void registerAll(Path start) throws IOException {
+        Files.walkFileTree(start, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir,
+                    BasicFileAttributes attrs) throws IOException {
+                WatchKey key =
+                        dir.register(watchService,
+                                StandardWatchEventKinds.ENTRY_CREATE,
+                                StandardWatchEventKinds.ENTRY_MODIFY,
+                                StandardWatchEventKinds.ENTRY_DELETE);
+                directories.put(key, dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private void fireChanged() {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            logger.error("[reload] error on reloading.", e);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.framework.container.creator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Proxy;
+
+import org.apache.wicket.markup.html.WebPage;
+import org.junit.Test;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.annotation.tiger.Aspect;
+import org.seasar.framework.container.annotation.tiger.InterType;
+import org.seasar.framework.container.annotation.tiger.Interceptor;
+import org.seasar.framework.container.factory.AnnotationHandler;
+import org.seasar.framework.container.factory.AnnotationHandlerFactory;
+import org.seasar.framework.container.impl.ComponentDefImpl;
+
+/**
+ * {@link WicketCreator}のアスペクトとインタータイプの判定が、
+ * AnnotationHandlerによる読み取りの結果と一致することを確認するテスト。
+ */
+public class WicketCreatorTest {
+
+    @Test
+    public void plainClasses() {
+        assertAspect(false, PlainPage.class);
+        assertAspect(false, PlainBean.class);
+        assertInterType(false, PlainPage.class);
+        assertInterType(false, PlainBean.class);
+    }
+
+    @Test
+    public void aspectAnnotations() {
+        assertAspect(true, ClassAspectPage.class);
+        assertAspect(true, MethodAspectPage.class);
+        assertInterType(false, ClassAspectPage.class);
+        assertInterType(false, MethodAspectPage.class);
+    }
+
+    @Test
+    public void aspectConstant() {
+        assertAspect(true, ConstantAspectPage.class);
+        assertInterType(false, ConstantAspectPage.class);
+    }
+
+    @Test
+    public void aspectSubclasses() {
+        assertAspect(null, SubclassOfClassAspectPage.class);
+        assertAspect(true, SubclassOfMethodAspectPage.class);
+        assertAspect(true, SubclassOfConstantAspectPage.class);
+    }
+
+    @Test
+    public void aspectProxies() {
+        // S2AOPのエンハンスと同じく、メソッドをオーバーライドしたサブクラス
+        assertAspect(false, OverridingMethodAspectPage.class);
+        // インターフェースのメソッドのアノテーションはプロクシクラスのメソッドには付かない
+        Class<?> proxyClass =
+                Proxy.getProxyClass(getClass().getClassLoader(),
+                        AspectService.class);
+        assertAspect(false, proxyClass);
+        assertInterType(false, proxyClass);
+    }
+
+    @Test
+    public void interceptorAnnotation() {
+        // 独自のインターセプタアノテーションは名前のみで判定する
+        assertTrue(WicketCreator.hasAspect(InterceptorAnnotatedPage.class));
+        assertFalse(WicketCreator.hasInterType(InterceptorAnnotatedPage.class));
+    }
+
+    @Test
+    public void interTypes() {
+        assertInterType(true, InterTypePage.class);
+        assertInterType(true, ConstantInterTypePage.class);
+        assertInterType(null, SubclassOfInterTypePage.class);
+        assertInterType(true, SubclassOfConstantInterTypePage.class);
+        assertAspect(false, InterTypePage.class);
+        assertAspect(false, ConstantInterTypePage.class);
+    }
+
+    /*
+     * 判定がAnnotationHandlerの結果と一致することを確認します。expectedがnullの場合は一致のみを確認します。
+     */
+    private static void assertAspect(Boolean expected, Class<?> clazz) {
+        ComponentDef cd = new ComponentDefImpl(clazz);
+        getHandler().appendAspect(cd);
+        boolean reflective = cd.getAspectDefSize() > 0;
+        if (expected != null) {
+            assertEquals(clazz.getName(), expected.booleanValue(), reflective);
+        }
+        assertEquals(clazz.getName(), reflective, WicketCreator.hasAspect(clazz));
+    }
+
+    private static void assertInterType(Boolean expected, Class<?> clazz) {
+        ComponentDef cd = new ComponentDefImpl(clazz);
+        getHandler().appendInterType(cd);
+        boolean reflective = cd.getInterTypeDefSize() > 0;
+        if (expected != null) {
+            assertEquals(clazz.getName(), expected.booleanValue(), reflective);
+        }
+        assertEquals(clazz.getName(), reflective,
+                WicketCreator.hasInterType(clazz));
+    }
+
+    private static AnnotationHandler getHandler() {
+        return AnnotationHandlerFactory.getAnnotationHandler();
+    }
+
+    public static class PlainPage extends WebPage {
+        private static final long serialVersionUID = 1L;
+
+        public void save() {
+        }
+    }
+
+    public static class PlainBean {
+        public static final String NAME = "plain";
+
+        public void save() {
+        }
+    }
+
+    @Aspect("aop.traceInterceptor")
+    public static class ClassAspectPage {
+        public void save() {
+        }
+    }
+
+    public static class MethodAspectPage {
+        @Aspect("aop.traceInterceptor")
+        public void save() {
+        }
+    }
+
+    public static class ConstantAspectPage {
+        public static final String ASPECT = "value=aop.traceInterceptor";
+
+        public void save() {
+        }
+    }
+
+    public static class SubclassOfClassAspectPage extends ClassAspectPage {
+    }
+
+    public static class SubclassOfMethodAspectPage extends MethodAspectPage {
+    }
+
+    public static class SubclassOfConstantAspectPage extends
+            ConstantAspectPage {
+    }
+
+    public static class OverridingMethodAspectPage extends MethodAspectPage {
+        @Override
+        public void save() {
+        }
+    }
+
+    public interface AspectService {
+        @Aspect("aop.traceInterceptor")
+        void save();
+    }
+
+    @Interceptor
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.METHOD)
+    public @interface Traced {
+    }
+
+    public static class InterceptorAnnotatedPage {
+        @Traced
+        public void save() {
+        }
+    }
+
+    @InterType("aop.propertyInterType")
+    public static class InterTypePage {
+    }
+
+    public static class ConstantInterTypePage {
+        public static final String INTER_TYPE = "aop.propertyInterType";
+    }
+
+    public static class SubclassOfInterTypePage extends InterTypePage {
+    }
+
+    public static class SubclassOfConstantInterTypePage extends
+            ConstantInterTypePage {
+    }
+}
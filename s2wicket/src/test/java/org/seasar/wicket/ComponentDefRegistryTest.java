@@ -0,0 +1,225 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.seasar.framework.container.ComponentDef;
+import org.seasar.framework.container.creator.WicketCreator;
+import org.seasar.framework.container.impl.ComponentDefImpl;
+import org.seasar.framework.container.impl.S2ContainerImpl;
+
+public class ComponentDefRegistryTest {
+    private static final int THREADS = 16;
+    private static final int ROUNDS = 20;
+
+    private static final Class<?>[] REGISTERED = new Class<?>[] {
+            PageA.class, PageB.class, PageC.class, PageD.class };
+
+    private ExecutorService executor;
+    private CountingContainer container;
+    private ComponentDefRegistry registry;
+
+    @Before
+    public void setUp() {
+        executor = Executors.newFixedThreadPool(THREADS);
+        container = new CountingContainer();
+        for (Class<?> clazz : REGISTERED) {
+            container.register(new ComponentDefImpl(clazz, nameOf(clazz)));
+        }
+        registry = new ComponentDefRegistry();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void sameClassFromManyThreads() throws Exception {
+        List<ComponentDef> results =
+                runConcurrently(new Callable<ComponentDef>() {
+                    public ComponentDef call() {
+                        return registry.getComponentDef(container, PageA.class);
+                    }
+                });
+
+        ComponentDef expected = container.getRegistered(PageA.class);
+        assertNotNull(expected);
+        for (ComponentDef result : results) {
+            assertSame(expected, result);
+        }
+        assertEquals(1, container.getLookupCount(PageA.class));
+    }
+
+    @Test
+    public void differentClassesFromManyThreads() throws Exception {
+        final List<Class<?>> targets = new ArrayList<Class<?>>();
+        Collections.addAll(targets, REGISTERED);
+        targets.add(NotRegistered.class);
+
+        final ConcurrentMap<Class<?>, ComponentDef> seen =
+                new ConcurrentHashMap<Class<?>, ComponentDef>();
+        final AtomicInteger mismatches = new AtomicInteger();
+        runConcurrently(new Callable<ComponentDef>() {
+            public ComponentDef call() {
+                List<Class<?>> order = new ArrayList<Class<?>>(targets);
+                for (int i = 0; i < ROUNDS; ++i) {
+                    Collections.shuffle(order);
+                    for (Class<?> target : order) {
+                        ComponentDef cd =
+                                registry.getComponentDef(container, target);
+                        if (cd != container.getRegistered(target)) {
+                            mismatches.incrementAndGet();
+                        }
+                        if (cd != null) {
+                            ComponentDef previous = seen.putIfAbsent(target, cd);
+                            if (previous != null && previous != cd) {
+                                mismatches.incrementAndGet();
+                            }
+                        }
+                    }
+                }
+                return null;
+            }
+        });
+
+        assertEquals(0, mismatches.get());
+        for (Class<?> target : targets) {
+            assertEquals(target.getName(), 1, container.getLookupCount(target));
+        }
+        assertEquals(REGISTERED.length, seen.size());
+        assertNull(seen.get(NotRegistered.class));
+    }
+
+    @Test
+    public void recreatedContainerIsLookedUpAgain() throws Exception {
+        assertSame(container.getRegistered(PageA.class),
+                registry.getComponentDef(container, PageA.class));
+
+        final CountingContainer recreated = new CountingContainer();
+        ComponentDef cd = new ComponentDefImpl(PageA.class, nameOf(PageA.class));
+        recreated.register(cd);
+        List<ComponentDef> results =
+                runConcurrently(new Callable<ComponentDef>() {
+                    public ComponentDef call() {
+                        return registry.getComponentDef(recreated, PageA.class);
+                    }
+                });
+
+        for (ComponentDef result : results) {
+            assertSame(cd, result);
+        }
+        assertEquals(1, recreated.getLookupCount(PageA.class));
+    }
+
+    /*
+     * すべてのスレッドで同時に処理を開始し、結果を返します。
+     */
+    private <T> List<T> runConcurrently(final Callable<T> task)
+            throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<T>> futures = new ArrayList<Future<T>>();
+        for (int i = 0; i < THREADS; ++i) {
+            futures.add(executor.submit(new Callable<T>() {
+                public T call() throws Exception {
+                    start.await();
+                    return task.call();
+                }
+            }));
+        }
+        start.countDown();
+        List<T> results = new ArrayList<T>();
+        for (Future<T> future : futures) {
+            results.add(future.get(30, TimeUnit.SECONDS));
+        }
+        return results;
+    }
+
+    private static String nameOf(Class<?> clazz) {
+        return WicketCreator.COMPONENTNAME_PREFIX + clazz.getCanonicalName();
+    }
+
+    /*
+     * 問い合わせの回数を数え、問い合わせを遅くして競合を起こりやすくするS2Container。
+     */
+    private static class CountingContainer extends S2ContainerImpl {
+        private final ConcurrentMap<String, AtomicInteger> lookups =
+                new ConcurrentHashMap<String, AtomicInteger>();
+
+        @Override
+        public boolean hasComponentDef(Object componentKey) {
+            if (componentKey instanceof String
+                    && ((String) componentKey).startsWith(WicketCreator.COMPONENTNAME_PREFIX)) {
+                AtomicInteger count = new AtomicInteger();
+                AtomicInteger current = lookups.putIfAbsent((String) componentKey, count);
+                (current != null ? current : count).incrementAndGet();
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return super.hasComponentDef(componentKey);
+        }
+
+        int getLookupCount(Class<?> clazz) {
+            AtomicInteger count = lookups.get(nameOf(clazz));
+            return count != null ? count.get() : 0;
+        }
+
+        ComponentDef getRegistered(Class<?> clazz) {
+            String name = nameOf(clazz);
+            return super.hasComponentDef(name) ? super.getComponentDef(name)
+                    : null;
+        }
+    }
+
+    public static class PageA {
+    }
+
+    public static class PageB {
+    }
+
+    public static class PageC {
+    }
+
+    public static class PageD {
+    }
+
+    public static class NotRegistered {
+    }
+}
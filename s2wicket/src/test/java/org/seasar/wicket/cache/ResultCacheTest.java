@@ -0,0 +1,119 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+public class ResultCacheTest {
+    private final ResultCache cache = new ResultCache();
+
+    @Test(timeout = 5000)
+    public void reentrantLoadOfSameKeyRunsInline() throws Throwable {
+        final AtomicInteger loads = new AtomicInteger();
+        Object value = cache.get("key", "tag", -1, new ResultCache.Loader() {
+            public Object load() throws Throwable {
+                if (loads.incrementAndGet() == 1) {
+                    return "outer:"
+                            + cache.get("key", "tag", -1, this);
+                }
+                return "inner";
+            }
+        });
+
+        assertEquals("outer:inner", value);
+        assertEquals(2, loads.get());
+        assertEquals(1, cache.getSize());
+        assertEquals("outer:inner", cache.get("key", "tag", -1, null));
+    }
+
+    @Test(timeout = 5000)
+    public void otherThreadWaitsForLoad() throws Throwable {
+        final CountDownLatch loading = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final Object[] result = new Object[1];
+        Thread loader = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = cache.get("key", "tag", -1,
+                            new ResultCache.Loader() {
+                                public Object load() throws Throwable {
+                                    loading.countDown();
+                                    release.await();
+                                    return "value";
+                                }
+                            });
+                } catch (Throwable t) {
+                    result[0] = t;
+                }
+            }
+        };
+        loader.start();
+        assertTrue(loading.await(1, TimeUnit.SECONDS));
+
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    assertEquals("value", cache.get("key", "tag", -1, null));
+                } catch (Throwable t) {
+                    throw new AssertionError(t);
+                }
+            }
+        };
+        waiter.start();
+        while (waiter.getState() != Thread.State.WAITING) {
+            Thread.sleep(1);
+        }
+        release.countDown();
+        loader.join();
+        waiter.join();
+
+        assertEquals("value", result[0]);
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getWaitCount());
+    }
+
+    @Test
+    public void registerAsMBean() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name =
+                new ObjectName("org.seasar.wicket:type=ResultCache,name=\"test\"");
+        cache.register("test");
+        try {
+            assertTrue(server.isRegistered(name));
+            assertEquals(Integer.valueOf(0), server.getAttribute(name, "Size"));
+            server.setAttribute(name, new javax.management.Attribute(
+                    "MaxWeight", Long.valueOf(5)));
+            assertEquals(5L, cache.getMaxWeight());
+        } finally {
+            cache.unregister();
+        }
+        assertFalse(server.isRegistered(name));
+    }
+}
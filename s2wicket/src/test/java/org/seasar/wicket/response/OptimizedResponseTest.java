@@ -0,0 +1,244 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.response;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.wicket.protocol.http.mock.MockHttpServletRequest;
+import org.apache.wicket.protocol.http.mock.MockHttpServletResponse;
+import org.apache.wicket.protocol.http.mock.MockHttpSession;
+import org.apache.wicket.protocol.http.mock.MockServletContext;
+import org.junit.Before;
+import org.junit.Test;
+
+public class OptimizedResponseTest {
+    private static final int THRESHOLD = 1024;
+    private static final int MAX_ETAG_BYTES = 16 * 1024;
+
+    private ResponseOptimizer optimizer;
+    private MockServletContext servletContext;
+
+    @Before
+    public void setUp() {
+        optimizer = new ResponseOptimizer();
+        optimizer.setCompression(true);
+        optimizer.setCompressionThreshold(THRESHOLD);
+        optimizer.setETag(true);
+        optimizer.setMaxETagBytes(MAX_ETAG_BYTES);
+        servletContext = new MockServletContext(null, null);
+    }
+
+    @Test
+    public void shortBodyIsNotCompressedButVaries() throws IOException {
+        MockHttpServletResponse response = render(request("gzip", null), body(100));
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertNotNull(response.getHeader("ETag"));
+        assertArrayEquals(body(100), response.getBinaryContent());
+    }
+
+    @Test
+    public void bodyOverThresholdIsCompressed() throws IOException {
+        MockHttpServletResponse response =
+                render(request("gzip", null), body(THRESHOLD));
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertTrue(response.getHeader("ETag").endsWith("-gzip\""));
+        assertArrayEquals(body(THRESHOLD),
+                gunzip(response.getBinaryContent()));
+    }
+
+    @Test
+    public void deflateWhenGzipIsRefused() throws IOException {
+        MockHttpServletResponse response =
+                render(request("gzip;q=0, deflate", null), body(4096));
+
+        assertEquals("deflate", response.getHeader("Content-Encoding"));
+        assertArrayEquals(body(4096), inflate(response.getBinaryContent()));
+    }
+
+    @Test
+    public void refusedEncodingStillVaries() throws IOException {
+        MockHttpServletResponse response =
+                render(request("identity, gzip;q=0", null), body(4096));
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertArrayEquals(body(4096), response.getBinaryContent());
+    }
+
+    @Test
+    public void matchingETagReturnsNotModifiedWithVary() throws IOException {
+        String etag =
+                render(request("gzip", null), body(4096)).getHeader("ETag");
+
+        MockHttpServletResponse response =
+                render(request("gzip", etag), body(4096));
+
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+        assertEquals(etag, response.getHeader("ETag"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertEquals(0, response.getBinaryContent().length);
+    }
+
+    @Test
+    public void weakAndListedETagsMatch() throws IOException {
+        String etag =
+                render(request("gzip", null), body(100)).getHeader("ETag");
+
+        MockHttpServletResponse response =
+                render(request("gzip", "\"other\", W/" + etag), body(100));
+
+        assertEquals(HttpServletResponse.SC_NOT_MODIFIED, response.getStatus());
+    }
+
+    @Test
+    public void largeBodyIsStreamedWithoutETag() throws IOException {
+        byte[] body = body(MAX_ETAG_BYTES * 4);
+        MockHttpServletResponse response = render(request("gzip", null), body);
+
+        assertNull(response.getHeader("ETag"));
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertArrayEquals(body, gunzip(response.getBinaryContent()));
+    }
+
+    @Test
+    public void largeBodyIsStreamedUncompressedWhenRefused() throws IOException {
+        byte[] body = body(MAX_ETAG_BYTES * 4);
+        MockHttpServletResponse response = render(request(null, null), body);
+
+        assertNull(response.getHeader("ETag"));
+        assertNull(response.getHeader("Content-Encoding"));
+        assertEquals("Accept-Encoding", response.getHeader("Vary"));
+        assertArrayEquals(body, response.getBinaryContent());
+    }
+
+    @Test
+    public void binaryContentIsLeftAlone() throws IOException {
+        MockHttpServletRequest request = request("gzip", null);
+        MockHttpServletResponse response = new MockHttpServletResponse(request);
+        OptimizedResponse optimized = optimizer.wrap(request, response);
+        optimized.setContentType("image/png");
+        optimized.getOutputStream().write(body(4096));
+        optimized.finish();
+
+        assertNull(response.getHeader("Content-Encoding"));
+        assertNull(response.getHeader("Vary"));
+        assertArrayEquals(body(4096), response.getBinaryContent());
+    }
+
+    @Test
+    public void abortWritesNothing() throws IOException {
+        MockHttpServletRequest request = request("gzip", null);
+        MockHttpServletResponse response = new MockHttpServletResponse(request);
+        OptimizedResponse optimized = optimizer.wrap(request, response);
+        optimized.setContentType("text/html");
+        optimized.getOutputStream().write(body(100));
+        optimized.abort();
+        optimized.getOutputStream().write(body(100));
+        optimized.finish();
+
+        assertEquals(0, response.getBinaryContent().length);
+    }
+
+    @Test
+    public void abortWhileStreamingReleasesCompressor() throws IOException {
+        MockHttpServletRequest request = request("gzip", null);
+        MockHttpServletResponse response = new MockHttpServletResponse(request);
+        OptimizedResponse optimized = optimizer.wrap(request, response);
+        optimized.setContentType("text/html");
+        optimized.getOutputStream().write(body(MAX_ETAG_BYTES * 2));
+        int written = response.getBinaryContent().length;
+        optimized.abort();
+        optimized.abort();
+
+        assertEquals("gzip", response.getHeader("Content-Encoding"));
+        assertEquals(written, response.getBinaryContent().length);
+    }
+
+    private MockHttpServletRequest request(String acceptEncoding,
+            String ifNoneMatch) {
+        MockHttpServletRequest request =
+                new MockHttpServletRequest(null, new MockHttpSession(
+                        servletContext), servletContext);
+        request.setMethod("GET");
+        if (acceptEncoding != null) {
+            request.addHeader("Accept-Encoding", acceptEncoding);
+        }
+        if (ifNoneMatch != null) {
+            request.addHeader("If-None-Match", ifNoneMatch);
+        }
+        return request;
+    }
+
+    private MockHttpServletResponse render(MockHttpServletRequest request,
+            byte[] body) throws IOException {
+        MockHttpServletResponse response = new MockHttpServletResponse(request);
+        OptimizedResponse optimized = optimizer.wrap(request, response);
+        optimized.setContentType("text/html");
+        // 数回に分けて書き込む
+        int chunk = Math.max(1, body.length / 3);
+        for (int off = 0; off < body.length; off += chunk) {
+            optimized.getOutputStream().write(body, off,
+                    Math.min(chunk, body.length - off));
+        }
+        optimized.finish();
+        return response;
+    }
+
+    private static byte[] body(int length) {
+        byte[] body = new byte[length];
+        for (int i = 0; i < length; ++i) {
+            body[i] = (byte) ('a' + i % 26);
+        }
+        return body;
+    }
+
+    private static byte[] gunzip(byte[] data) throws IOException {
+        return readFully(new GZIPInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] inflate(byte[] data) throws IOException {
+        return readFully(new InflaterInputStream(new ByteArrayInputStream(data)));
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = in.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,49 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.response;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+public class ResponseOptimizerTest {
+    @Test
+    public void acceptedEncodings() {
+        assertEquals("gzip", ResponseOptimizer.selectEncoding("gzip"));
+        assertEquals("gzip", ResponseOptimizer.selectEncoding("GZIP, deflate"));
+        assertEquals("gzip", ResponseOptimizer.selectEncoding("deflate, gzip"));
+        assertEquals("gzip", ResponseOptimizer.selectEncoding("x-gzip"));
+        assertEquals("deflate", ResponseOptimizer.selectEncoding("deflate"));
+        assertEquals("deflate",
+                ResponseOptimizer.selectEncoding("gzip;q=0.5, deflate"));
+        assertEquals("gzip", ResponseOptimizer.selectEncoding("*"));
+        assertEquals("deflate",
+                ResponseOptimizer.selectEncoding("gzip;q=0, *"));
+    }
+
+    @Test
+    public void refusedEncodings() {
+        assertNull(ResponseOptimizer.selectEncoding(null));
+        assertNull(ResponseOptimizer.selectEncoding(""));
+        assertNull(ResponseOptimizer.selectEncoding("identity"));
+        assertNull(ResponseOptimizer.selectEncoding("gzip;q=0"));
+        assertNull(ResponseOptimizer.selectEncoding("identity, gzip;q=0"));
+        assertNull(ResponseOptimizer.selectEncoding("gzip; q=0.0, deflate;q=0"));
+        assertNull(ResponseOptimizer.selectEncoding("*;q=0"));
+        assertNull(ResponseOptimizer.selectEncoding("br, compress"));
+    }
+}
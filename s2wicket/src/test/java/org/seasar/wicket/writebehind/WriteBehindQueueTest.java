@@ -0,0 +1,180 @@
+/*-
+ * Copyright 2011 TAKEUCHI Hideyuki (chimerast)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND,
+ * either express or implied. See the License for the specific language
+ * governing permissions and limitations under the License.
+ */
+package org.seasar.wicket.writebehind;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class WriteBehindQueueTest {
+    private static final int THREADS = 16;
+    private static final int WRITES = 200;
+
+    private ExecutorService executor;
+    private WriteBehindQueue queue;
+    private Sink sink;
+    private Method insert;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newFixedThreadPool(THREADS);
+        queue = new WriteBehindQueue();
+        queue.setCapacity(64);
+        queue.setBatchSize(16);
+        queue.setFlushInterval(50L);
+        queue.start();
+        sink = new Sink();
+        insert = Sink.class.getMethod("insert", String.class);
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        queue.stop();
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void flushSeesOwnWritesFromManyThreads() throws Exception {
+        final AtomicInteger missing = new AtomicInteger();
+        runConcurrently(new Callable<Void>() {
+            public Void call() {
+                String name = Thread.currentThread().getName();
+                for (int i = 0; i < WRITES; ++i) {
+                    String value = name + "-" + i;
+                    queue.enqueue(sink, insert, new Object[] { value });
+                    if (i % 10 == 0) {
+                        queue.flush();
+                        if (!sink.written.contains(value)) {
+                            missing.incrementAndGet();
+                        }
+                    }
+                }
+                queue.flush();
+                return null;
+            }
+        });
+
+        assertEquals(0, missing.get());
+        assertEquals(THREADS * WRITES, sink.written.size());
+        assertEquals(THREADS * WRITES, queue.getWrittenCount());
+        assertEquals(0, queue.getFailedCount());
+        assertTrue(sink.batches.get() < THREADS * WRITES);
+    }
+
+    @Test
+    public void failureIsReportedOnlyToFlushThatWaitedForIt() throws Exception {
+        queue.setRetryCount(1);
+        queue.enqueue(sink, insert, new Object[] { Sink.BROKEN });
+        try {
+            queue.flush();
+            fail();
+        } catch (WriteBehindException expected) {
+        }
+
+        // 報告済みの失敗は、他の書き込みを待つflushには影響しない
+        final AtomicInteger failures = new AtomicInteger();
+        runConcurrently(new Callable<Void>() {
+            public Void call() {
+                String name = Thread.currentThread().getName();
+                for (int i = 0; i < WRITES / 10; ++i) {
+                    queue.enqueue(sink, insert, new Object[] { name + "-" + i });
+                    try {
+                        queue.flush();
+                    } catch (WriteBehindException e) {
+                        failures.incrementAndGet();
+                    }
+                }
+                return null;
+            }
+        });
+
+        assertEquals(0, failures.get());
+        assertEquals(1, queue.getFailedCount());
+        assertEquals(THREADS * (WRITES / 10), sink.written.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void drainOutsideQueueThread() {
+        queue.drain();
+    }
+
+    /*
+     * すべてのスレッドで同時に処理を開始し、終わるまで待ちます。
+     */
+    private void runConcurrently(final Callable<Void> task) throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int i = 0; i < THREADS; ++i) {
+            futures.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    start.await();
+                    return task.call();
+                }
+            }));
+        }
+        start.countDown();
+        for (Future<Void> future : futures) {
+            future.get(60, TimeUnit.SECONDS);
+        }
+    }
+
+    /*
+     * 書き込まれた値を記録する、バッチ更新メソッドを持つコンポーネント。
+     */
+    public static class Sink {
+        static final String BROKEN = "broken";
+
+        final Set<String> written =
+                Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final AtomicInteger batches = new AtomicInteger();
+
+        public void insert(String value) {
+            if (BROKEN.equals(value)) {
+                throw new IllegalArgumentException(value);
+            }
+            written.add(value);
+        }
+
+        public void insertBatch(List<String> values) {
+            batches.incrementAndGet();
+            for (String value : values) {
+                if (BROKEN.equals(value)) {
+                    throw new IllegalArgumentException(value);
+                }
+            }
+            written.addAll(values);
+        }
+    }
+}